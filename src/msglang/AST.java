@@ -45,6 +45,8 @@ public interface AST {
 
 	public static class VarExp extends Exp {
 		String _name;
+		int _depth = -1; // Lexical address set by the Resolver, -1 if free.
+		int _index = -1;
 
 		public VarExp(String name) {
 			_name = name;
@@ -53,7 +55,27 @@ public interface AST {
 		public String name() {
 			return _name;
 		}
-		
+
+		/**
+		 * Number of frames between the use of this variable and the frame
+		 * that binds it, or -1 if the variable is not lexically bound.
+		 */
+		public int depth() {
+			return _depth;
+		}
+
+		/**
+		 * Position of this variable within its binding frame.
+		 */
+		public int index() {
+			return _index;
+		}
+
+		public void setAddress(int depth, int index) {
+			_depth = depth;
+			_index = index;
+		}
+
 		public Object accept(Visitor visitor, Env env, Heap h) {
 			return visitor.visit(this, env, h);
 		}
@@ -321,6 +343,7 @@ public interface AST {
 	public static class LambdaExp extends Exp {		
 		List<String> _formals;
 		Exp _body;
+		private volatile Object _profile = null;
 		
 		public LambdaExp(List<String> formals, Exp body) {
 			_formals = formals;
@@ -330,6 +353,11 @@ public interface AST {
 		public List<String> formals() { return _formals; }
 		
 		public Exp body() { return _body; }
+
+		/* What an engine has recorded about runs of the body, or null. */
+		public Object profile() { return _profile; }
+
+		public void profile(Object profile) { _profile = profile; }
 		
 		public Object accept(Visitor visitor, Env env, Heap h) {
 			return visitor.visit(this, env, h);
@@ -688,6 +716,22 @@ public interface AST {
 		}
 	}
 
+	/**
+	 * Require expression: loads the module in the file that is _file, once
+	 * @author hridesh
+	 *
+	 */
+	public static class RequireExp extends Exp {
+		private Exp _file; 
+		public RequireExp(Exp file){
+			_file = file;
+		}
+		public Exp file() { return _file; }
+		public Object accept(Visitor visitor, Env env, Heap h) {
+			return visitor.visit(this, env, h);
+		}
+	}
+
 	/**
 	 * A letrec expression has the syntax 
 	 * 
@@ -884,29 +928,96 @@ public interface AST {
 	/**
 	 * An anonymous process declaration has the syntax
 	 * 
-	 * procexp : '(' Process  '(' Identifier* ')' exp  ')'  ;
+	 * procexp : '(' Process  '(' Identifier* ')' exp  ')'
+	 *         | '(' Process  '(' Receive clause+ ')' ')' ;
+	 * clause  : '(' '(' (numexp | strexp | boolexp)? Identifier* ')' exp ')' ;
+	 * 
+	 * The first form is a process with one clause that takes every message of
+	 * its arity. In the second, a message is handled by the first clause with
+	 * its arity and, if the clause has a tag, with the tag as its first value;
+	 * the rest of the values are bound to the formals of the clause.
 	 * 
 	 * @author hridesh
 	 *
 	 */
 	public static class ProcExp extends Exp {		
-		List<String> _formals;
-		Exp _body;
+		List<Clause> _clauses;
+		boolean _receive;
+		private volatile Dispatch _dispatch = null;
 		
 		public ProcExp(List<String> formals, Exp body) {
-			_formals = formals;
-			_body = body;
+			_clauses = new ArrayList<Clause>(1);
+			_clauses.add(new Clause(null, formals, body));
+			_receive = false;
 		}
 		
-		public List<String> formals() { return _formals; }
+		public ProcExp(List<Clause> clauses) {
+			_clauses = clauses;
+			_receive = true;
+		}
 		
-		public Exp body() { return _body; }
+		/* The formals and body of the first clause, which is the only one
+		 * unless this is a receive. */
+		public List<String> formals() { return _clauses.get(0).formals(); }
+		
+		public Exp body() { return _clauses.get(0).body(); }
+
+		public List<Clause> clauses() { return _clauses; }
+
+		/* Whether this was written with receive clauses. */
+		public boolean isReceive() { return _receive; }
+
+		/* The table that picks a clause for a message, built on first use. */
+		public Dispatch dispatch() {
+			Dispatch dispatch = _dispatch;
+			if(dispatch == null)
+				_dispatch = dispatch = new Dispatch(_clauses);
+			return dispatch;
+		}
 		
 		public Object accept(Visitor visitor, Env env, Heap h) {
 			return visitor.visit(this, env, h);
 		}
 	}
 
+	/**
+	 * One clause of a receive: an optional literal tag, the formals bound to
+	 * the values after it, and the body.
+	 */
+	public static class Clause {
+		Exp _tag;
+		List<String> _formals;
+		List<String> _receive_names;
+		Exp _body;
+		private volatile Object _profile = null;
+
+		public Clause(Exp tag, List<String> formals, Exp body) {
+			_tag = tag;
+			_formals = formals;
+			_receive_names = new ArrayList<String>(formals);
+			_receive_names.add("self");
+			_body = body;
+		}
+
+		/* A NumExp, StrExp or BoolExp, or null if the clause has no tag. */
+		public Exp tag() { return _tag; }
+
+		public List<String> formals() { return _formals; }
+
+		/* The formals followed by self: the names the body is evaluated with. */
+		public List<String> receive_names() { return _receive_names; }
+
+		public Exp body() { return _body; }
+
+		/* What an engine has recorded about runs of the body, or null. */
+		public Object profile() { return _profile; }
+
+		public void profile(Object profile) { _profile = profile; }
+
+		/* The number of values in the messages this clause takes. */
+		public int arity() { return (_tag == null ? 0 : 1) + _formals.size(); }
+	}
+
 	/**
 	 * A send expression has the syntax
 	 * 
@@ -933,6 +1044,62 @@ public interface AST {
 		}
 	}
 
+	/**
+	 * An ask expression sends a message like send, and evaluates to a future
+	 * that the receiver completes with the value of its handler for that
+	 * message. It has the syntax
+	 * 
+	 * askexp : '(' Ask exp exp*  ')' ;
+	 * 
+	 * @author hridesh
+	 *
+	 */
+	public static class AskExp extends Exp {
+		Exp _receiver; 
+		List<Exp> _operands;
+		
+		public AskExp(Exp operator, List<Exp> operands) {
+			_receiver = operator; 
+			_operands = operands;
+		}
+		
+		public Exp operator() { return _receiver; }
+
+		public List<Exp> operands() { return _operands; }
+		
+		public Object accept(Visitor visitor, Env env, Heap h) {
+			return visitor.visit(this, env, h);
+		}
+	}
+
+	/**
+	 * An await expression waits for a future, for at most timeout
+	 * milliseconds if a timeout is given. It has the syntax
+	 * 
+	 * awaitexp : '(' Await exp exp? ')' ;
+	 * 
+	 * @author hridesh
+	 *
+	 */
+	public static class AwaitExp extends Exp {
+		Exp _future; 
+		Exp _timeout;
+		
+		public AwaitExp(Exp future, Exp timeout) {
+			_future = future; 
+			_timeout = timeout;
+		}
+		
+		public Exp future() { return _future; }
+
+		/* The timeout, or null to wait as long as it takes. */
+		public Exp timeout() { return _timeout; }
+		
+		public Object accept(Visitor visitor, Env env, Heap h) {
+			return visitor.visit(this, env, h);
+		}
+	}
+
 	/**
 	 * A stop expression has the syntax
 	 * 
@@ -991,6 +1158,7 @@ public interface AST {
 		public T visit(AST.DefineDecl d, Env env, Heap h); 
 		public T visit(AST.ReadExp e, Env env, Heap h); 
 		public T visit(AST.EvalExp e, Env env, Heap h); 
+		public T visit(AST.RequireExp e, Env env, Heap h); 
 		public T visit(AST.LambdaExp e, Env env, Heap h); 
 		public T visit(AST.CallExp e, Env env, Heap h); 
 		public T visit(AST.LetrecExp e, Env env, Heap h); 
@@ -1022,5 +1190,7 @@ public interface AST {
 		public T visit(AST.SendExp e, Env env, Heap h); // New for the Msglang
 		public T visit(AST.SelfExp e, Env env, Heap h); // New for the Msglang
 		public T visit(AST.StopExp e, Env env, Heap h); // New for the Msglang
+		public T visit(AST.AskExp e, Env env, Heap h);
+		public T visit(AST.AwaitExp e, Env env, Heap h);
 	}	
 }
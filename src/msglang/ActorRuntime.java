@@ -0,0 +1,127 @@
+package msglang;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs the message handlers of actors.
+ *
+ * An actor is only a mailbox until it has a message to process; it then hands
+ * itself to its runtime, which runs one turn of it (see Value.ActorVal.run) on
+ * some worker thread. The runtime never runs two turns of one actor at once.
+ *
+ * @author hridesh
+ *
+ */
+public interface ActorRuntime {
+
+	/**
+	 * Runs one turn of an actor, soon and on some other thread.
+	 */
+	void execute(Runnable turn);
+
+	/**
+	 * The counters of the actors this runtime runs.
+	 */
+	Stats stats();
+
+	/**
+	 * Counts actors through their lifecycle: an actor is live from its
+	 * creation until it stops, and the messages still in its mailbox when
+	 * it stops are dropped.
+	 */
+	static class Stats {
+		private final AtomicLong _created = new AtomicLong();
+		private final AtomicLong _stopped = new AtomicLong();
+		private final AtomicLong _dropped = new AtomicLong();
+		private final AtomicLong _refused = new AtomicLong();
+		private final AtomicInteger _peak = new AtomicInteger();
+
+		void created() { _created.incrementAndGet(); }
+		void stopped() { _stopped.incrementAndGet(); }
+		void dropped(int messages) { _dropped.addAndGet(messages); }
+		void refused() { _refused.incrementAndGet(); }
+		void depth(int depth) {
+			int peak;
+			while(depth > (peak = _peak.get()) && !_peak.compareAndSet(peak, depth));
+		}
+
+		public long live() { return _created.get() - _stopped.get(); }
+		public long stoppedCount() { return _stopped.get(); }
+		public long droppedCount() { return _dropped.get(); }
+		/* Sends that failed because the mailbox was full. */
+		public long refusedCount() { return _refused.get(); }
+		/* The deepest that any mailbox has been at the start of a turn. */
+		public int peakDepth() { return _peak.get(); }
+
+		public String toString() {
+			return "actors: " + live() + " live, " + stoppedCount() + " stopped, "
+					+ droppedCount() + " messages dropped, " + refusedCount()
+					+ " refused by full mailboxes, peak mailbox depth " + peakDepth();
+		}
+	}
+
+	/**
+	 * Runs turns on a fixed number of worker threads, so that idle actors
+	 * cost nothing but their mailbox. A handler that blocks keeps its worker
+	 * until it returns.
+	 */
+	static class Pool implements ActorRuntime {
+		private final ForkJoinPool _workers;
+		private final Stats _stats = new Stats();
+
+		public Pool() {
+			this(Runtime.getRuntime().availableProcessors());
+		}
+
+		public Pool(int workers) {
+			// Async mode: turns are FIFO and never joined, as befits messages.
+			_workers = new ForkJoinPool(workers, ForkJoinPool.defaultForkJoinWorkerThreadFactory, null, true);
+		}
+
+		public void execute(Runnable turn) {
+			_workers.execute(turn);
+		}
+
+		public Stats stats() { return _stats; }
+
+		public int workers() { return _workers.getParallelism(); }
+	}
+
+	/**
+	 * Runs each turn on a new virtual thread, so that a handler that blocks
+	 * parks only its own thread. Virtual threads need Java 21; see factory.
+	 */
+	static class Virtual implements ActorRuntime {
+		private final ThreadFactory _threads;
+		private final Stats _stats = new Stats();
+
+		public Virtual(ThreadFactory threads) {
+			_threads = threads;
+		}
+
+		public void execute(Runnable turn) {
+			_threads.newThread(turn).start();
+		}
+
+		public Stats stats() { return _stats; }
+
+		/**
+		 * Returns a factory of virtual threads, or null if this JVM has none.
+		 * Thread.ofVirtual is looked up reflectively so that the interpreter
+		 * still builds and runs on older JDKs.
+		 */
+		public static ThreadFactory factory() {
+			try {
+				Method ofVirtual = Thread.class.getMethod("ofVirtual");
+				Method factory = Class.forName("java.lang.Thread$Builder").getMethod("factory");
+				return (ThreadFactory) factory.invoke(ofVirtual.invoke(null));
+			} catch (Exception e) { // Not there, or a preview feature that is not enabled.
+				return null;
+			}
+		}
+	}
+}
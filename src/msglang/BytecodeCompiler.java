@@ -0,0 +1,667 @@
+package msglang;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Array;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import msglang.AST.*;
+
+/**
+ * Compiles the body of a lambda or a process to a JVM class, loaded as a
+ * hidden class, so that the JIT can inline the arithmetic and comparisons
+ * of hot msglang code.
+ *
+ * Numeric subexpressions are computed on unboxed doubles and comparisons in
+ * conditionals branch directly on the result of dcmpl/dcmpg; only the value
+ * of the whole arithmetic expression is boxed. Calls go through
+ * Evaluator.call so that they have exactly the Evaluator's semantics. Any
+ * expression this compiler has no translation for is handed back to the
+ * Evaluator, which therefore remains the reference for what compiled code
+ * must do.
+ *
+ * Classes are written with class file version 49, which does not require
+ * StackMapTable attributes. Defining hidden classes requires Java 15 or later;
+ * on older JDKs nothing can be compiled and available() is false.
+ *
+ * @author hridesh
+ *
+ */
+public class BytecodeCompiler {
+
+	/**
+	 * The compiled body of a lambda or a process.
+	 */
+	public interface Code {
+		Value run(Env env, Heap h);
+	}
+
+	private final Evaluator _evaluator;
+
+	/* Lookup.defineHiddenClass and an empty array of its options, or null
+	 * before Java 15. Looked up reflectively so that the interpreter still
+	 * builds and runs on older JDKs. */
+	private static final Method DEFINE_HIDDEN_CLASS;
+	private static final Object NO_OPTIONS;
+	static {
+		Method define = null;
+		Object options = null;
+		try {
+			Class<?> option = Class.forName("java.lang.invoke.MethodHandles$Lookup$ClassOption");
+			options = Array.newInstance(option, 0);
+			define = MethodHandles.Lookup.class.getMethod("defineHiddenClass", byte[].class, boolean.class, options.getClass());
+		} catch (Exception e) { // Not there.
+			define = null;
+		}
+		DEFINE_HIDDEN_CLASS = define;
+		NO_OPTIONS = options;
+	}
+
+	/* Whether this JVM can load compiled code. */
+	public static boolean available() { return DEFINE_HIDDEN_CLASS != null; }
+
+	public BytecodeCompiler(Evaluator evaluator) {
+		_evaluator = evaluator;
+	}
+
+	/**
+	 * Compiles body, which will be run in a frame binding the formals of its
+	 * lambda or process.
+	 * @throws IllegalStateException if the body is too large for one method,
+	 * or this JVM cannot load compiled code.
+	 */
+	public Code compile(Exp body) {
+		if(!available())
+			throw new IllegalStateException("Loading compiled code needs Java 15 or later");
+		MethodGen m = new MethodGen();
+		m._tail = true;
+		m.genValue(body);
+		m.op(ARETURN, -1);
+		byte[] bytes = m.toClassFile();
+		try {
+			MethodHandles.Lookup lookup = (MethodHandles.Lookup) DEFINE_HIDDEN_CLASS.invoke(MethodHandles.lookup(), bytes, true, NO_OPTIONS);
+			MethodHandle constructor = lookup.findConstructor(lookup.lookupClass(),
+					MethodType.methodType(void.class, Evaluator.class, Object[].class));
+			return (Code) constructor.invoke(_evaluator, m.constants());
+		} catch (Throwable e) {
+			throw new IllegalStateException("Could not load compiled code: " + e, e);
+		}
+	}
+
+	/* Helpers called from compiled code. */
+
+	public static Value notBoolean(Evaluator ev, IfExp e, Env env, Heap h) {
+		return new Value.DynamicError("Condition not a boolean in expression " + ev.ts.visit(e, env, h));
+	}
+
+	public static Value notFunction(Evaluator ev, CallExp e, Env env, Heap h) {
+		return new Value.DynamicError("Operator not a function in call " + ev.ts.visit(e, env, h));
+	}
+
+	/* Opcodes used by the generator. */
+	private static final int ICONST_0 = 0x03, ICONST_1 = 0x04,
+			DCONST_0 = 0x0e, DCONST_1 = 0x0f, SIPUSH = 0x11, LDC_W = 0x13, LDC2_W = 0x14,
+			ALOAD = 0x19, AALOAD = 0x32, ASTORE = 0x3a, AASTORE = 0x53, DUP = 0x59,
+			DADD = 0x63, DSUB = 0x67, DMUL = 0x6b, DDIV = 0x6f, DCMPL = 0x97, DCMPG = 0x98,
+			IFEQ = 0x99, IFNE = 0x9a, IFGE = 0x9c, IFLE = 0x9e, GOTO = 0xa7,
+			ARETURN = 0xb0, RETURN = 0xb1, GETSTATIC = 0xb2, GETFIELD = 0xb4, PUTFIELD = 0xb5,
+			INVOKEVIRTUAL = 0xb6, INVOKESPECIAL = 0xb7, INVOKESTATIC = 0xb8,
+			NEW = 0xbb, ANEWARRAY = 0xbd, CHECKCAST = 0xc0, INSTANCEOF = 0xc1;
+
+	/* Internal names and descriptors. */
+	private static final String THIS = "msglang/BytecodeCompiler$Body",
+			OBJECT = "java/lang/Object", STRING = "java/lang/String",
+			VALUE = "msglang/Value", L_VALUE = "Lmsglang/Value;",
+			NUMVAL = "msglang/Value$NumVal", BOOLVAL = "msglang/Value$BoolVal",
+			UNITVAL = "msglang/Value$UnitVal", STRINGVAL = "msglang/Value$StringVal",
+			PAIRVAL = "msglang/Value$PairVal", NULL = "msglang/Value$Null",
+			FUNVAL = "msglang/Value$FunVal", DYNAMICERROR = "msglang/Value$DynamicError",
+			ENV = "msglang/Env", FRAMEENV = "msglang/Env$FrameEnv", GLOBALENV = "msglang/Env$GlobalEnv",
+			HEAP = "msglang/Heap", EVALUATOR = "msglang/Evaluator", L_EVALUATOR = "Lmsglang/Evaluator;",
+			EXP = "msglang/AST$Exp", CALLEXP = "msglang/AST$CallExp", IFEXP = "msglang/AST$IfExp",
+			RUN_DESC = "(Lmsglang/Env;Lmsglang/Heap;)Lmsglang/Value;";
+
+	/* Local variable slots of run(Env, Heap). */
+	private static final int LOCAL_THIS = 0, LOCAL_ENV = 1, LOCAL_HEAP = 2;
+
+	private static class Label {
+		int pos = -1;
+		final List<int[]> uses = new ArrayList<int[]>(); // {instruction, operand}
+	}
+
+	/**
+	 * Generates the run method of one class, and then the class itself.
+	 */
+	private static class MethodGen {
+		private final ConstantPool _pool = new ConstantPool();
+		private final ByteArrayOutputStream _code = new ByteArrayOutputStream();
+		private final List<Label> _labels = new ArrayList<Label>();
+		private final List<Object> _constants = new ArrayList<Object>();
+		private int _stack = 0, _max_stack = 0;
+		private int _env = LOCAL_ENV, _next_local = 3;
+
+		Object[] constants() { return _constants.toArray(); }
+
+		/* Emitting instructions */
+
+		void op(int opcode, int delta) {
+			_code.write(opcode);
+			adjust(delta);
+		}
+
+		void adjust(int delta) {
+			_stack += delta;
+			if(_stack > _max_stack) _max_stack = _stack;
+		}
+
+		void u2(int v) {
+			_code.write(v >>> 8);
+			_code.write(v);
+		}
+
+		void aload(int local) { op(ALOAD, 1); _code.write(local); }
+		void astore(int local) { op(ASTORE, -1); _code.write(local); }
+		void sipush(int v) { op(SIPUSH, 1); u2(v); }
+
+		void type(int opcode, String cls, int delta) {
+			op(opcode, delta);
+			u2(_pool.cls(cls));
+		}
+
+		void field(int opcode, String owner, String name, String desc, int delta) {
+			op(opcode, delta);
+			u2(_pool.member(9, owner, name, desc));
+		}
+
+		void invoke(int opcode, String owner, String name, String desc, int delta) {
+			op(opcode, delta);
+			u2(_pool.member(10, owner, name, desc));
+		}
+
+		void ldc(String s) {
+			op(LDC_W, 1);
+			u2(_pool.string(s));
+		}
+
+		void ldc(double d) {
+			if(Double.doubleToRawLongBits(d) == 0L) { op(DCONST_0, 2); return; }
+			if(d == 1.0) { op(DCONST_1, 2); return; }
+			op(LDC2_W, 2);
+			u2(_pool.dbl(d));
+		}
+
+		/* Pushes constant number index of the class, cast to cls. */
+		void constant(Object o, String cls) {
+			int index = _constants.size();
+			_constants.add(o);
+			aload(LOCAL_THIS);
+			field(GETFIELD, THIS, "k", "[Ljava/lang/Object;", 0);
+			sipush(index);
+			op(AALOAD, -1);
+			type(CHECKCAST, cls, 0);
+		}
+
+		void evaluator() {
+			aload(LOCAL_THIS);
+			field(GETFIELD, THIS, "ev", L_EVALUATOR, 0);
+		}
+
+		void jump(int opcode, Label l, int delta) {
+			int at = _code.size();
+			op(opcode, delta);
+			l.uses.add(new int[] { at, _code.size() });
+			u2(0);
+		}
+
+		Label label() {
+			Label l = new Label();
+			_labels.add(l);
+			return l;
+		}
+
+		void place(Label l, int stack) {
+			l.pos = _code.size();
+			_stack = stack;
+		}
+
+		int newLocal() {
+			if(_next_local > 255)
+				throw new IllegalStateException("Too many locals");
+			return _next_local++;
+		}
+
+		/* Boxing helpers: box the double or boolean on the stack, through
+		 * NumVal.of and BoolVal.of so that common values are shared. */
+		void boxNum() { invoke(INVOKESTATIC, NUMVAL, "of", "(D)L" + NUMVAL + ";", -1); }
+		void boxBool() { invoke(INVOKESTATIC, BOOLVAL, "of", "(Z)L" + BOOLVAL + ";", 0); }
+
+		/* Code generation */
+
+		/* Whether the expression being generated is in tail position. */
+		boolean _tail = false;
+
+		/**
+		 * Generates code that leaves the value of e on the stack. A call in
+		 * tail position leaves an Evaluator.TailCall instead.
+		 */
+		void genValue(Exp e) {
+			boolean tail = _tail;
+			_tail = false;
+			if(e instanceof NumExp) {
+				ldc(((NumExp) e).v());
+				boxNum();
+			} else if(e instanceof BoolExp) {
+				op(((BoolExp) e).v() ? ICONST_1 : ICONST_0, 1);
+				boxBool();
+			} else if(e instanceof StrExp) {
+				type(NEW, STRINGVAL, 1);
+				op(DUP, 1);
+				ldc(((StrExp) e).v());
+				invoke(INVOKESPECIAL, STRINGVAL, "<init>", "(Ljava/lang/String;)V", -2);
+			} else if(e instanceof UnitExp) {
+				field(GETSTATIC, UNITVAL, "v", "L" + UNITVAL + ";", 1);
+			} else if(e instanceof VarExp) {
+				genVar((VarExp) e);
+			} else if(e instanceof CompoundArithExp) {
+				genDouble(e);
+				boxNum();
+			} else if(e instanceof BinaryComparator) {
+				Label no = label(), end = label();
+				int stack = _stack;
+				genBranch((BinaryComparator) e, no);
+				op(ICONST_1, 1);
+				jump(GOTO, end, 0);
+				place(no, stack);
+				op(ICONST_0, 1);
+				place(end, stack + 1);
+				boxBool();
+			} else if(e instanceof IfExp) {
+				genIf((IfExp) e, tail);
+			} else if(e instanceof CallExp) {
+				genCall((CallExp) e, tail);
+			} else if(e instanceof LetExp) {
+				genLet((LetExp) e, tail);
+			} else if(e instanceof CarExp) {
+				genValue(((CarExp) e).arg());
+				type(CHECKCAST, PAIRVAL, 0);
+				invoke(INVOKEVIRTUAL, PAIRVAL, "fst", "()" + L_VALUE, 0);
+			} else if(e instanceof CdrExp) {
+				genValue(((CdrExp) e).arg());
+				type(CHECKCAST, PAIRVAL, 0);
+				invoke(INVOKEVIRTUAL, PAIRVAL, "snd", "()" + L_VALUE, 0);
+			} else if(e instanceof ConsExp) {
+				type(NEW, PAIRVAL, 1);
+				op(DUP, 1);
+				genValue(((ConsExp) e).fst());
+				genValue(((ConsExp) e).snd());
+				invoke(INVOKESPECIAL, PAIRVAL, "<init>", "(" + L_VALUE + L_VALUE + ")V", -3);
+			} else if(e instanceof NullExp) {
+				genValue(((NullExp) e).arg());
+				type(INSTANCEOF, NULL, 0);
+				boxBool();
+			} else {
+				genInterpreted(e);
+			}
+		}
+
+		/**
+		 * Generates code that leaves the value of the numeric expression e on
+		 * the stack as an unboxed double.
+		 */
+		void genDouble(Exp e) {
+			if(e instanceof NumExp) {
+				ldc(((NumExp) e).v());
+			} else if(e instanceof AddExp || e instanceof MultExp) {
+				// Same association as the Evaluator: 0 + a + b..., 1 * a * b...
+				boolean add = e instanceof AddExp;
+				op(add ? DCONST_0 : DCONST_1, 2);
+				for(Exp operand : ((CompoundArithExp) e).all()) {
+					genDouble(operand);
+					op(add ? DADD : DMUL, -2);
+				}
+			} else if(e instanceof SubExp || e instanceof DivExp) {
+				List<Exp> operands = ((CompoundArithExp) e).all();
+				genDouble(operands.get(0));
+				for(int i = 1; i < operands.size(); i++) {
+					genDouble(operands.get(i));
+					op(e instanceof SubExp ? DSUB : DDIV, -2);
+				}
+			} else {
+				genValue(e);
+				type(CHECKCAST, NUMVAL, 0);
+				invoke(INVOKEVIRTUAL, NUMVAL, "v", "()D", 1);
+			}
+		}
+
+		/**
+		 * Generates code that jumps to no if the comparison is false.
+		 */
+		void genBranch(BinaryComparator e, Label no) {
+			genDouble(e.first_exp());
+			genDouble(e.second_exp());
+			if(e instanceof LessExp) {
+				op(DCMPG, -3); // NaN compares as greater, so it is not less.
+				jump(IFGE, no, -1);
+			} else if(e instanceof GreaterExp) {
+				op(DCMPL, -3); // NaN compares as less, so it is not greater.
+				jump(IFLE, no, -1);
+			} else {
+				op(DCMPL, -3);
+				jump(IFNE, no, -1);
+			}
+		}
+
+		void genVar(VarExp e) {
+			if(e.depth() < 0) {
+				evaluator();
+				field(GETFIELD, EVALUATOR, "initEnv", "L" + GLOBALENV + ";", 0);
+				ldc(e.name());
+				invoke(INVOKEVIRTUAL, GLOBALENV, "get", "(Ljava/lang/String;)" + L_VALUE, -1);
+			} else if(e.depth() == 0) {
+				aload(_env);
+				type(CHECKCAST, FRAMEENV, 0);
+				invoke(INVOKEVIRTUAL, FRAMEENV, "slots", "()[" + L_VALUE, 0);
+				sipush(e.index());
+				op(AALOAD, -1);
+			} else {
+				aload(_env);
+				type(CHECKCAST, FRAMEENV, 0);
+				sipush(e.depth());
+				sipush(e.index());
+				invoke(INVOKEVIRTUAL, FRAMEENV, "get", "(II)" + L_VALUE, -2);
+			}
+		}
+
+		void genIf(IfExp e, boolean tail) {
+			Label no = label(), end = label(), error = null;
+			int stack = _stack;
+			if(e.conditional() instanceof BinaryComparator) {
+				genBranch((BinaryComparator) e.conditional(), no);
+			} else {
+				error = label();
+				int cond = newLocal();
+				genValue(e.conditional());
+				astore(cond);
+				aload(cond);
+				type(INSTANCEOF, BOOLVAL, 0);
+				jump(IFEQ, error, -1);
+				aload(cond);
+				type(CHECKCAST, BOOLVAL, 0);
+				invoke(INVOKEVIRTUAL, BOOLVAL, "v", "()Z", 0);
+				jump(IFEQ, no, -1);
+			}
+			_tail = tail;
+			genValue(e.then_exp());
+			jump(GOTO, end, 0);
+			place(no, stack);
+			_tail = tail;
+			genValue(e.else_exp());
+			if(error != null) {
+				jump(GOTO, end, 0);
+				place(error, stack);
+				evaluator();
+				constant(e, IFEXP);
+				aload(_env);
+				aload(LOCAL_HEAP);
+				invoke(INVOKESTATIC, "msglang/BytecodeCompiler", "notBoolean",
+						"(" + L_EVALUATOR + "L" + IFEXP + ";L" + ENV + ";L" + HEAP + ";)" + L_VALUE, -3);
+			}
+			place(end, stack + 1);
+		}
+
+		void genCall(CallExp e, boolean tail) {
+			Label ok = label(), end = label();
+			int stack = _stack;
+			int operator = newLocal();
+			genValue(e.operator());
+			astore(operator);
+			aload(operator);
+			type(INSTANCEOF, FUNVAL, 0);
+			jump(IFNE, ok, -1);
+			evaluator();
+			constant(e, CALLEXP);
+			aload(_env);
+			aload(LOCAL_HEAP);
+			invoke(INVOKESTATIC, "msglang/BytecodeCompiler", "notFunction",
+					"(" + L_EVALUATOR + "L" + CALLEXP + ";L" + ENV + ";L" + HEAP + ";)" + L_VALUE, -3);
+			jump(GOTO, end, 0);
+			place(ok, stack);
+			evaluator();
+			constant(e, CALLEXP);
+			aload(operator);
+			type(CHECKCAST, FUNVAL, 0);
+			List<Exp> operands = e.operands();
+			sipush(operands.size());
+			type(ANEWARRAY, VALUE, 0);
+			for(int i = 0; i < operands.size(); i++) {
+				op(DUP, 1);
+				sipush(i);
+				genValue(operands.get(i));
+				op(AASTORE, -3);
+			}
+			aload(_env);
+			aload(LOCAL_HEAP);
+			invoke(INVOKEVIRTUAL, EVALUATOR, tail ? "tailCall" : "call",
+					"(L" + CALLEXP + ";L" + FUNVAL + ";[" + L_VALUE + "L" + ENV + ";L" + HEAP + ";)" + L_VALUE, -5);
+			place(end, stack + 1);
+		}
+
+		void genLet(LetExp e, boolean tail) {
+			Label end = label();
+			int stack = _stack;
+			List<Exp> value_exps = e.value_exps();
+			int values = newLocal(), value = newLocal();
+			sipush(value_exps.size());
+			type(ANEWARRAY, VALUE, 0);
+			astore(values);
+			for(int i = 0; i < value_exps.size(); i++) {
+				Label ok = label();
+				genValue(value_exps.get(i));
+				astore(value);
+				aload(value);
+				type(INSTANCEOF, DYNAMICERROR, 0);
+				jump(IFEQ, ok, -1);
+				aload(value); // Errors in a binding are the value of the let.
+				jump(GOTO, end, 0);
+				place(ok, stack);
+				aload(values);
+				sipush(i);
+				aload(value);
+				op(AASTORE, -3);
+			}
+			int saved_env = _env;
+			int new_env = newLocal();
+			type(NEW, FRAMEENV, 1);
+			op(DUP, 1);
+			aload(_env);
+			constant(e.names(), "java/util/List");
+			aload(values);
+			invoke(INVOKESPECIAL, FRAMEENV, "<init>", "(L" + ENV + ";Ljava/util/List;[" + L_VALUE + ")V", -4);
+			astore(new_env);
+			_env = new_env;
+			_tail = tail;
+			genValue(e.body());
+			_env = saved_env;
+			place(end, stack + 1);
+		}
+
+		void genInterpreted(Exp e) {
+			constant(e, EXP);
+			evaluator();
+			aload(_env);
+			aload(LOCAL_HEAP);
+			invoke(INVOKEVIRTUAL, EXP, "accept",
+					"(Lmsglang/AST$Visitor;L" + ENV + ";L" + HEAP + ";)Ljava/lang/Object;", -3);
+			type(CHECKCAST, VALUE, 0);
+		}
+
+		/* Class file */
+
+		byte[] toClassFile() {
+			byte[] code = _code.toByteArray();
+			for(Label l : _labels) {
+				for(int[] use : l.uses) {
+					int offset = l.pos - use[0];
+					if(offset > Short.MAX_VALUE || offset < Short.MIN_VALUE)
+						throw new IllegalStateException("Compiled body too large");
+					code[use[1]] = (byte) (offset >>> 8);
+					code[use[1] + 1] = (byte) offset;
+				}
+			}
+			if(code.length > 65535)
+				throw new IllegalStateException("Compiled body too large");
+
+			int this_class = _pool.cls(THIS);
+			int super_class = _pool.cls(OBJECT);
+			int code_interface = _pool.cls("msglang/BytecodeCompiler$Code");
+			int ev = _pool.utf8("ev"), ev_desc = _pool.utf8(L_EVALUATOR);
+			int k = _pool.utf8("k"), k_desc = _pool.utf8("[Ljava/lang/Object;");
+			int init = _pool.utf8("<init>"), init_desc = _pool.utf8("(" + L_EVALUATOR + "[Ljava/lang/Object;)V");
+			int run = _pool.utf8("run"), run_desc = _pool.utf8(RUN_DESC);
+			int code_attribute = _pool.utf8("Code");
+			int object_init = _pool.member(10, OBJECT, "<init>", "()V");
+			int ev_field = _pool.member(9, THIS, "ev", L_EVALUATOR);
+			int k_field = _pool.member(9, THIS, "k", "[Ljava/lang/Object;");
+
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream(bytes);
+			try {
+				out.writeInt(0xCAFEBABE);
+				out.writeShort(0);
+				out.writeShort(49);
+				_pool.write(out);
+				out.writeShort(0x0001 | 0x0010 | 0x0020); // public final super
+				out.writeShort(this_class);
+				out.writeShort(super_class);
+				out.writeShort(1);
+				out.writeShort(code_interface);
+
+				out.writeShort(2);
+				for(int[] f : new int[][] { { ev, ev_desc }, { k, k_desc } }) {
+					out.writeShort(0x0002 | 0x0010); // private final
+					out.writeShort(f[0]);
+					out.writeShort(f[1]);
+					out.writeShort(0);
+				}
+
+				out.writeShort(2);
+				// public <init>(Evaluator ev, Object[] k) { super(); this.ev = ev; this.k = k; }
+				byte[] init_code = {
+					0x2a, (byte) INVOKESPECIAL, (byte) (object_init >>> 8), (byte) object_init,
+					0x2a, 0x2b, (byte) PUTFIELD, (byte) (ev_field >>> 8), (byte) ev_field,
+					0x2a, 0x2c, (byte) PUTFIELD, (byte) (k_field >>> 8), (byte) k_field,
+					(byte) RETURN };
+				writeMethod(out, init, init_desc, code_attribute, 2, 3, init_code);
+				writeMethod(out, run, run_desc, code_attribute, _max_stack, _next_local, code);
+
+				out.writeShort(0); // attributes
+			} catch (IOException e) {
+				throw new IllegalStateException(e);
+			}
+			return bytes.toByteArray();
+		}
+
+		private static void writeMethod(DataOutputStream out, int name, int desc, int code_attribute,
+				int max_stack, int max_locals, byte[] code) throws IOException {
+			out.writeShort(0x0001); // public
+			out.writeShort(name);
+			out.writeShort(desc);
+			out.writeShort(1);
+			out.writeShort(code_attribute);
+			out.writeInt(12 + code.length);
+			out.writeShort(max_stack);
+			out.writeShort(max_locals);
+			out.writeInt(code.length);
+			out.write(code);
+			out.writeShort(0); // exception table
+			out.writeShort(0); // attributes
+		}
+	}
+
+	/**
+	 * The constant pool of the class being generated. Entries are written as
+	 * soon as they are created, so their order in the pool is their index.
+	 */
+	private static class ConstantPool {
+		private final ByteArrayOutputStream _bytes = new ByteArrayOutputStream();
+		private final DataOutputStream _out = new DataOutputStream(_bytes);
+		private final Map<String, Integer> _entries = new HashMap<String, Integer>();
+		private int _count = 1;
+
+		private int add(String key, int slots) {
+			int index = _count;
+			_count += slots;
+			_entries.put(key, index);
+			return index;
+		}
+
+		int utf8(String s) {
+			Integer index = _entries.get("U" + s);
+			if(index != null) return index;
+			try {
+				_out.writeByte(1);
+				_out.writeUTF(s);
+			} catch (IOException e) {
+				throw new IllegalStateException(e);
+			}
+			return add("U" + s, 1);
+		}
+
+		private int ref(int tag, String key, int... refs) {
+			Integer index = _entries.get(key);
+			if(index != null) return index;
+			try {
+				_out.writeByte(tag);
+				for(int r : refs)
+					_out.writeShort(r);
+			} catch (IOException e) {
+				throw new IllegalStateException(e);
+			}
+			return add(key, 1);
+		}
+
+		int cls(String name) {
+			return ref(7, "C" + name, utf8(name));
+		}
+
+		int string(String s) {
+			return ref(8, "S" + s, utf8(s));
+		}
+
+		int dbl(double d) {
+			long bits = Double.doubleToRawLongBits(d);
+			Integer index = _entries.get("D" + bits);
+			if(index != null) return index;
+			try {
+				_out.writeByte(6);
+				_out.writeLong(bits);
+			} catch (IOException e) {
+				throw new IllegalStateException(e);
+			}
+			return add("D" + bits, 2); // Doubles take two slots.
+		}
+
+		/* A field (tag 9) or method (tag 10) reference. */
+		int member(int tag, String owner, String name, String desc) {
+			int cls = cls(owner);
+			int nat = ref(12, "N" + name + ":" + desc, utf8(name), utf8(desc));
+			return ref(tag, tag + owner + "." + name + ":" + desc, cls, nat);
+		}
+
+		void write(DataOutputStream out) throws IOException {
+			if(_count > 65535)
+				throw new IllegalStateException("Compiled body too large");
+			out.writeShort(_count);
+			_out.flush();
+			_bytes.writeTo(out);
+		}
+	}
+}
@@ -0,0 +1,740 @@
+package msglang;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+import msglang.AST.*;
+import msglang.Env.*;
+import msglang.Value.*;
+
+/**
+ * An alternative execution engine that compiles each expression once into a
+ * tree of executable nodes (closure compilation) instead of re-dispatching
+ * through the Visitor on every evaluation. Each node is specialized for its
+ * shape when it is built, e.g. a variable node already knows whether it reads
+ * a frame slot or a global, and a two-operand addition does not iterate over
+ * a list of operands.
+ *
+ * Values, environments and heaps are the same as in the Evaluator, so both
+ * engines produce identical results for the same program.
+ *
+ * @author hridesh
+ *
+ */
+public class ClosureCompiler extends Evaluator {
+
+	public ClosureCompiler(Reader reader) {
+		super(reader);
+	}
+
+	public ClosureCompiler(Reader reader, Heap.Factory heaps) {
+		super(reader, heaps);
+	}
+
+	/**
+	 * An executable node. Evaluating a node never consults the AST again,
+	 * except to format error messages.
+	 */
+	static abstract class Node extends Branch {
+		/* The value of a numeric node, unboxed. */
+		double number(Env env, Heap h) {
+			return ((NumVal) eval(env, h)).v(); // Dynamic type-checking
+		}
+	}
+
+	/**
+	 * A node computing a number, so that nested arithmetic passes doubles
+	 * between nodes and boxes only the final result.
+	 */
+	static abstract class NumNode extends Node {
+		Value eval(Env env, Heap h) { return NumVal.of(number(env, h)); }
+		abstract double number(Env env, Heap h);
+	}
+
+	/**
+	 * A function value whose body has already been compiled.
+	 */
+	static class Closure extends FunVal {
+		private final Node _code;
+		Closure(Env env, List<String> formals, Exp body, Node code) {
+			super(env, formals, body);
+			_code = code;
+		}
+		Node code() { return _code; }
+	}
+
+	/**
+	 * An actor whose clause bodies have already been compiled.
+	 */
+	static class CompiledActor extends ActorVal {
+		private final Node[] _code;
+		CompiledActor(Env env, ProcExp proc, Evaluator evaluator, Heap h, Node[] code) {
+			super(env, proc, evaluator, h);
+			_code = code;
+		}
+		@Override
+		protected Value process(int clause, Env receive_env) {
+			return evaluator().complete(_code[clause].eval(receive_env, heap()), heap());
+		}
+	}
+
+	@Override
+	public Value visit(Program p, Env env, Heap h) {
+		Node program = (Node) p.accept(new Translator(), null, null);
+		h.enter(initEnv);
+		Value value = null;
+		try {
+			return value = program.eval(initEnv, h);
+		} finally {
+			h.leave(value);
+		}
+	}
+
+	/* Compiles e with a Translator of its own, since programs are compiled
+	 * at run time too, by eval, require and actor turns on other threads. */
+	Node compile(Exp e) {
+		return new Translator().compile(e, false);
+	}
+
+	@Override
+	Value complete(Value value, Heap h) {
+		while(value instanceof TailCall) {
+			TailCall t = (TailCall) value;
+			h.jump(t.env());
+			value = code(t.operator()).eval(t.env(), h);
+		}
+		return value;
+	}
+
+	/* Compiled bodies of the built-in procedures, by body. */
+	private final ConcurrentHashMap<Exp, Node> _builtins = new ConcurrentHashMap<Exp, Node>();
+
+	private Node code(FunVal f) {
+		if(f instanceof Closure)
+			return ((Closure) f).code();
+		Node code = _builtins.get(f.body()); // A built-in procedure.
+		if(code == null) {
+			code = new Translator().compile(f.body(), true);
+			Node raced = _builtins.putIfAbsent(f.body(), code);
+			if(raced != null)
+				code = raced;
+		}
+		return code;
+	}
+
+	/**
+	 * Translates one expression and its subexpressions; used by one thread
+	 * at a time.
+	 */
+	private class Translator implements AST.Visitor<Node> {
+
+		/* Whether the expression being translated is in tail position. */
+		private boolean _tail = false;
+
+		private Node compile(Exp e) {
+			return compile(e, false);
+		}
+
+		/* Compiles e; a call in tail position of e evaluates to a TailCall. */
+		private Node compile(Exp e, boolean tail) {
+			boolean saved = _tail;
+			_tail = tail;
+			Node node = (Node) e.accept(this, null, null);
+			_tail = saved;
+			return node;
+		}
+
+		private Node[] compileAll(List<Exp> exps) {
+			Node[] nodes = new Node[exps.size()];
+			for(int i = 0; i < nodes.length; i++)
+				nodes[i] = compile(exps.get(i));
+			return nodes;
+		}
+
+		public Node visit(final UnitExp e, Env env, Heap h) {
+			return new Node() {
+				Value eval(Env env, Heap h) { return UnitVal.v; }
+			};
+		}
+
+		public Node visit(final NumExp e, Env env, Heap h) {
+			final double v = e.v();
+			final NumVal value = NumVal.of(v);
+			return new NumNode() {
+				Value eval(Env env, Heap h) { return value; }
+				double number(Env env, Heap h) { return v; }
+			};
+		}
+
+		public Node visit(final StrExp e, Env env, Heap h) {
+			final String v = e.v();
+			return new Node() {
+				Value eval(Env env, Heap h) { return new StringVal(v); }
+			};
+		}
+
+		public Node visit(final BoolExp e, Env env, Heap h) {
+			final boolean v = e.v();
+			return new Node() {
+				Value eval(Env env, Heap h) { return BoolVal.of(v); }
+			};
+		}
+
+		public Node visit(final ErrorExp e, Env env, Heap h) {
+			return new Node() {
+				Value eval(Env env, Heap h) { return new DynamicError("Encountered an error expression"); }
+			};
+		}
+
+		public Node visit(final VarExp e, Env env, Heap h) {
+			final int depth = e.depth();
+			final int index = e.index();
+			final String name = e.name();
+			if(depth == 0)
+				return new Node() {
+					Value eval(Env env, Heap h) { return ((FrameEnv) env).slots()[index]; }
+				};
+			if(depth > 0)
+				return new Node() {
+					Value eval(Env env, Heap h) { return ((FrameEnv) env).get(depth, index); }
+				};
+			return new Node() {
+				Value eval(Env env, Heap h) { return initEnv.get(name); }
+			};
+		}
+
+		public Node visit(final AddExp e, Env env, Heap h) {
+			final Node[] operands = compileAll(e.all());
+			if(operands.length == 2) {
+				final Node fst = operands[0], snd = operands[1];
+				return new NumNode() {
+					double number(Env env, Heap h) {
+						double result = 0;
+						result += fst.number(env, h);
+						result += snd.number(env, h);
+						return result;
+					}
+				};
+			}
+			return new NumNode() {
+				double number(Env env, Heap h) {
+					double result = 0;
+					for(Node operand : operands)
+						result += operand.number(env, h);
+					return result;
+				}
+			};
+		}
+
+		public Node visit(final SubExp e, Env env, Heap h) {
+			final Node[] operands = compileAll(e.all());
+			if(operands.length == 2) {
+				final Node fst = operands[0], snd = operands[1];
+				return new NumNode() {
+					double number(Env env, Heap h) {
+						double result = fst.number(env, h);
+						return result - snd.number(env, h);
+					}
+				};
+			}
+			return new NumNode() {
+				double number(Env env, Heap h) {
+					double result = operands[0].number(env, h);
+					for(int i = 1; i < operands.length; i++)
+						result = result - operands[i].number(env, h);
+					return result;
+				}
+			};
+		}
+
+		public Node visit(final MultExp e, Env env, Heap h) {
+			final Node[] operands = compileAll(e.all());
+			if(operands.length == 2) {
+				final Node fst = operands[0], snd = operands[1];
+				return new NumNode() {
+					double number(Env env, Heap h) {
+						double result = 1;
+						result *= fst.number(env, h);
+						result *= snd.number(env, h);
+						return result;
+					}
+				};
+			}
+			return new NumNode() {
+				double number(Env env, Heap h) {
+					double result = 1;
+					for(Node operand : operands)
+						result *= operand.number(env, h);
+					return result;
+				}
+			};
+		}
+
+		public Node visit(final DivExp e, Env env, Heap h) {
+			final Node[] operands = compileAll(e.all());
+			return new NumNode() {
+				double number(Env env, Heap h) {
+					double result = operands[0].number(env, h);
+					for(int i = 1; i < operands.length; i++)
+						result = result / operands[i].number(env, h);
+					return result;
+				}
+			};
+		}
+
+		public Node visit(final LessExp e, Env env, Heap h) {
+			final Node fst = compile(e.first_exp()), snd = compile(e.second_exp());
+			return new Node() {
+				Value eval(Env env, Heap h) {
+					double first = fst.number(env, h);
+					return BoolVal.of(first < snd.number(env, h));
+				}
+			};
+		}
+
+		public Node visit(final EqualExp e, Env env, Heap h) {
+			final Node fst = compile(e.first_exp()), snd = compile(e.second_exp());
+			return new Node() {
+				Value eval(Env env, Heap h) {
+					double first = fst.number(env, h);
+					return BoolVal.of(first == snd.number(env, h));
+				}
+			};
+		}
+
+		public Node visit(final GreaterExp e, Env env, Heap h) {
+			final Node fst = compile(e.first_exp()), snd = compile(e.second_exp());
+			return new Node() {
+				Value eval(Env env, Heap h) {
+					double first = fst.number(env, h);
+					return BoolVal.of(first > snd.number(env, h));
+				}
+			};
+		}
+
+		public Node visit(final LetExp e, Env env, Heap h) {
+			final List<String> names = e.names();
+			final Node[] value_exps = compileAll(e.value_exps());
+			final Node body = compile(e.body(), _tail);
+			return new Node() {
+				Value eval(Env env, Heap h) {
+					Value[] values = new Value[value_exps.length];
+					for(int i = 0; i < values.length; i++) {
+						Value value = value_exps[i].eval(env, h);
+						if(value instanceof DynamicError)
+							return value;
+						values[i] = value;
+					}
+					return body.eval(new FrameEnv(env, names, values), h);
+				}
+			};
+		}
+
+		public Node visit(final LetrecExp e, Env env, Heap h) {
+			final List<String> names = e.names();
+			final Node[] fun_exps = compileAll(e.fun_exps());
+			final Node body = compile(e.body(), _tail);
+			return new Node() {
+				Value eval(Env env, Heap h) {
+					Value[] funs = new Value[fun_exps.length];
+					Env new_env = new FrameEnv(env, names, funs);
+					for(int i = 0; i < funs.length; i++)
+						funs[i] = fun_exps[i].eval(new_env, h);
+					return body.eval(new_env, h);
+				}
+			};
+		}
+
+		public Node visit(final LambdaExp e, Env env, Heap h) {
+			final List<String> formals = e.formals();
+			final Exp body_exp = e.body();
+			final Node body = compile(body_exp, true);
+			return new Node() {
+				Value eval(Env env, Heap h) { return new Closure(env, formals, body_exp, body); }
+			};
+		}
+
+		public Node visit(final CallExp e, Env env, Heap h) {
+			final boolean tail = _tail;
+			final Node operator = compile(e.operator());
+			final Node[] operands = compileAll(e.operands());
+			return new Node() {
+				Value eval(Env env, Heap h) {
+					Value result = operator.eval(env, h);
+					if(!(result instanceof FunVal))
+						return new DynamicError("Operator not a function in call " + ts.visit(e, env, h));
+					FunVal f = (FunVal) result;
+					Value[] actuals = new Value[operands.length];
+					for(int i = 0; i < actuals.length; i++)
+						actuals[i] = operands[i].eval(env, h);
+					if(f.formals().size() != actuals.length)
+						return new DynamicError("Argument mismatch in call " + ts.visit(e, env, h));
+					Env fun_env = new FrameEnv(f.env(), f.formals(), actuals);
+					if(tail)
+						return new TailCall(f, fun_env);
+					h.enter(fun_env);
+					Value value = null;
+					try {
+						return value = complete(code(f).eval(fun_env, h), h);
+					} finally {
+						h.leave(value);
+					}
+				}
+			};
+		}
+
+		public Node visit(final IfExp e, Env env, Heap h) {
+			final Node conditional = compile(e.conditional());
+			final Node then_exp = compile(e.then_exp(), _tail);
+			final Node else_exp = compile(e.else_exp(), _tail);
+			return new Node() {
+				Value eval(Env env, Heap h) {
+					Value result = conditional.eval(env, h);
+					if(!(result instanceof BoolVal))
+						return new DynamicError("Condition not a boolean in expression " + ts.visit(e, env, h));
+					if(((BoolVal) result).v())
+						return then_exp.eval(env, h);
+					return else_exp.eval(env, h);
+				}
+			};
+		}
+
+		public Node visit(final CarExp e, Env env, Heap h) {
+			final Node arg = compile(e.arg());
+			return new Node() {
+				Value eval(Env env, Heap h) { return ((PairVal) arg.eval(env, h)).fst(); }
+			};
+		}
+
+		public Node visit(final CdrExp e, Env env, Heap h) {
+			final Node arg = compile(e.arg());
+			return new Node() {
+				Value eval(Env env, Heap h) { return ((PairVal) arg.eval(env, h)).snd(); }
+			};
+		}
+
+		public Node visit(final ConsExp e, Env env, Heap h) {
+			final Node fst = compile(e.fst()), snd = compile(e.snd());
+			return new Node() {
+				Value eval(Env env, Heap h) {
+					Value first = fst.eval(env, h);
+					Value second = snd.eval(env, h);
+					return new PairVal(first, second);
+				}
+			};
+		}
+
+		public Node visit(final ListExp e, Env env, Heap h) {
+			final Node[] elems = compileAll(e.elems());
+			return new Node() {
+				Value eval(Env env, Heap h) {
+					if(elems.length == 0)
+						return Null.v;
+					Value[] values = new Value[elems.length];
+					for(int i = 0; i < elems.length; i++)
+						values[i] = elems[i].eval(env, h);
+					Value result = Null.v;
+					for(int i = values.length - 1; i >= 0; i--)
+						result = new PairVal(values[i], result);
+					return result;
+				}
+			};
+		}
+
+		public Node visit(final NullExp e, Env env, Heap h) {
+			final Node arg = compile(e.arg());
+			return new Node() {
+				Value eval(Env env, Heap h) { return BoolVal.of(arg.eval(env, h) instanceof Null); }
+			};
+		}
+
+		public Node visit(final IsNullExp e, Env env, Heap h) {
+			final Node arg = compile(e.exp());
+			return new Node() {
+				Value eval(Env env, Heap h) { return BoolVal.of(arg.eval(env, h) instanceof Null); }
+			};
+		}
+
+		public Node visit(final IsListExp e, Env env, Heap h) {
+			final Node arg = compile(e.exp());
+			return new Node() {
+				Value eval(Env env, Heap h) {
+					Value val = arg.eval(env, h);
+					return BoolVal.of(val instanceof PairVal && ((PairVal) val).isList() || val instanceof Null);
+				}
+			};
+		}
+
+		public Node visit(final IsPairExp e, Env env, Heap h) {
+			final Node arg = compile(e.exp());
+			return new Node() {
+				Value eval(Env env, Heap h) { return BoolVal.of(arg.eval(env, h) instanceof PairVal); }
+			};
+		}
+
+		public Node visit(final IsUnitExp e, Env env, Heap h) {
+			final Node arg = compile(e.exp());
+			return new Node() {
+				Value eval(Env env, Heap h) { return BoolVal.of(arg.eval(env, h) instanceof UnitVal); }
+			};
+		}
+
+		public Node visit(final IsProcedureExp e, Env env, Heap h) {
+			final Node arg = compile(e.exp());
+			return new Node() {
+				Value eval(Env env, Heap h) { return BoolVal.of(arg.eval(env, h) instanceof FunVal); }
+			};
+		}
+
+		public Node visit(final IsStringExp e, Env env, Heap h) {
+			final Node arg = compile(e.exp());
+			return new Node() {
+				Value eval(Env env, Heap h) { return BoolVal.of(arg.eval(env, h) instanceof StringVal); }
+			};
+		}
+
+		public Node visit(final IsNumberExp e, Env env, Heap h) {
+			final Node arg = compile(e.exp());
+			return new Node() {
+				Value eval(Env env, Heap h) { return BoolVal.of(arg.eval(env, h) instanceof NumVal); }
+			};
+		}
+
+		public Node visit(final IsBooleanExp e, Env env, Heap h) {
+			final Node arg = compile(e.exp());
+			return new Node() {
+				Value eval(Env env, Heap h) { return BoolVal.of(arg.eval(env, h) instanceof BoolVal); }
+			};
+		}
+
+		public Node visit(final EvalExp e, Env env, Heap h) {
+			final Node code = compile(e.code());
+			return new Node() {
+				Value eval(Env env, Heap h) {
+					StringVal programText = (StringVal) code.eval(env, h);
+					Program p = _reader.parse(programText.v());
+					return ClosureCompiler.this.visit(p, env, h);
+				}
+			};
+		}
+
+		public Node visit(final RequireExp e, Env env, Heap h) {
+			final Node file = compile(e.file());
+			return new Node() {
+				Value eval(Env env, Heap h) {
+					StringVal fileName = (StringVal) file.eval(env, h);
+					return require(fileName.v(), h);
+				}
+			};
+		}
+
+		public Node visit(final ReadExp e, Env env, Heap h) {
+			final Node file = compile(e.file());
+			return new Node() {
+				Value eval(Env env, Heap h) {
+					StringVal fileName = (StringVal) file.eval(env, h);
+					try {
+						String text = Reader.readFile("" + System.getProperty("user.dir") + File.separator + fileName.v());
+						return new StringVal(text);
+					} catch (IOException ex) {
+						return new DynamicError(ex.getMessage());
+					}
+				}
+			};
+		}
+
+		public Node visit(final RefExp e, Env env, Heap h) {
+			final Node value_exp = compile(e.value_exp());
+			return new Node() {
+				Value eval(Env env, Heap h) { return h.ref(value_exp.eval(env, h)); }
+			};
+		}
+
+		public Node visit(final DerefExp e, Env env, Heap h) {
+			final Node loc_exp = compile(e.loc_exp());
+			return new Node() {
+				Value eval(Env env, Heap h) { return h.deref((RefVal) loc_exp.eval(env, h)); }
+			};
+		}
+
+		public Node visit(final AssignExp e, Env env, Heap h) {
+			final Node lhs = compile(e.lhs_exp()), rhs = compile(e.rhs_exp());
+			return new Node() {
+				Value eval(Env env, Heap h) {
+					//Note the order of evaluation below.
+					Value rhs_val = rhs.eval(env, h);
+					RefVal loc = (RefVal) lhs.eval(env, h);
+					return h.setref(loc, rhs_val);
+				}
+			};
+		}
+
+		public Node visit(final FreeExp e, Env env, Heap h) {
+			final Node value_exp = compile(e.value_exp());
+			return new Node() {
+				Value eval(Env env, Heap h) {
+					Value result = h.free((RefVal) value_exp.eval(env, h));
+					if(result instanceof DynamicError)
+						return result;
+					return UnitVal.v;
+				}
+			};
+		}
+
+		public Node visit(final ForkExp e, Env env, Heap h) {
+			final Node fst = compile(e.fst_exp()), snd = compile(e.snd_exp());
+			return new Node() {
+				Value eval(Env env, Heap h) {
+					return fork(fst, snd, env, h);
+				}
+			};
+		}
+
+		public Node visit(final LockExp e, Env env, Heap h) {
+			final Node value_exp = compile(e.value_exp());
+			return new Node() {
+				Value eval(Env env, Heap h) {
+					Value result = value_exp.eval(env, h);
+					if(!(result instanceof RefVal))
+						return new DynamicError("Non-reference values cannot be locked in expression " + ts.visit(e, env, h));
+					RefVal loc = (RefVal) result;
+					h.block();
+					try {
+						loc.lock();
+					} finally {
+						h.unblock();
+					}
+					return loc;
+				}
+			};
+		}
+
+		public Node visit(final UnlockExp e, Env env, Heap h) {
+			final Node value_exp = compile(e.value_exp());
+			return new Node() {
+				Value eval(Env env, Heap h) {
+					Value result = value_exp.eval(env, h);
+					if(!(result instanceof RefVal))
+						return new DynamicError("Non-reference values cannot be unlocked  in expression " + ts.visit(e, env, h));
+					RefVal loc = (RefVal) result;
+					try {
+						loc.unlock();
+					} catch(IllegalMonitorStateException ex) {
+						return new DynamicError("Lock held by another thread " + ts.visit(e, env, h));
+					}
+					return loc;
+				}
+			};
+		}
+
+		public Node visit(final ProcExp e, Env env, Heap h) {
+			List<Clause> clauses = e.clauses();
+			final Node[] bodies = new Node[clauses.size()];
+			for(int i = 0; i < bodies.length; i++)
+				bodies[i] = compile(clauses.get(i).body(), true);
+			return new Node() {
+				Value eval(Env env, Heap h) {
+					return new CompiledActor(env, e, ClosureCompiler.this, h, bodies);
+				}
+			};
+		}
+
+		public Node visit(final SendExp e, Env env, Heap h) {
+			final Node operator = compile(e.operator());
+			final Node[] operands = compileAll(e.operands());
+			return new Node() {
+				Value eval(Env env, Heap h) {
+					Value result = operator.eval(env, h);
+					if(!(result instanceof ActorVal))
+						return notActor("send", e, env, h);
+					List<Value> actuals = new java.util.ArrayList<Value>(operands.length);
+					for(Node operand : operands)
+						actuals.add(operand.eval(env, h));
+					return send((ActorVal) result, actuals, e, env, h);
+				}
+			};
+		}
+
+		public Node visit(final AskExp e, Env env, Heap h) {
+			final Node operator = compile(e.operator());
+			final Node[] operands = compileAll(e.operands());
+			return new Node() {
+				Value eval(Env env, Heap h) {
+					Value result = operator.eval(env, h);
+					if(!(result instanceof ActorVal))
+						return notActor("ask", e, env, h);
+					List<Value> actuals = new java.util.ArrayList<Value>(operands.length);
+					for(Node operand : operands)
+						actuals.add(operand.eval(env, h));
+					return ask((ActorVal) result, actuals, e, env, h);
+				}
+			};
+		}
+
+		public Node visit(final AwaitExp e, Env env, Heap h) {
+			final Node future = compile(e.future());
+			final Node timeout = e.timeout() == null ? null : compile(e.timeout());
+			return new Node() {
+				Value eval(Env env, Heap h) {
+					Value result = awaited(future.eval(env, h), e, env, h);
+					if(!(result instanceof Value.FutureVal))
+						return result;
+					return await((Value.FutureVal) result, timeout == null ? null : timeout.eval(env, h), e, env, h);
+				}
+			};
+		}
+
+		public Node visit(final SelfExp e, Env env, Heap h) {
+			return new Node() {
+				Value eval(Env env, Heap h) {
+					Value result = env.get("self");
+					if(!(result instanceof ActorVal))
+						return new DynamicError("Self is not an actor in " + ts.visit(e, env, h));
+					return result;
+				}
+			};
+		}
+
+		public Node visit(final StopExp e, Env env, Heap h) {
+			return new Node() {
+				Value eval(Env env, Heap h) {
+					Value result = env.get("self");
+					if(!(result instanceof ActorVal))
+						return new DynamicError("Self is not an actor in " + ts.visit(e, env, h));
+					((ActorVal) result).exit();
+					return UnitVal.v;
+				}
+			};
+		}
+
+		/* A program runs its definitions in order, then its expression, all
+		 * in the global environment. */
+		public Node visit(Program p, Env env, Heap h) {
+			final List<DefineDecl> decls = p.decls();
+			final Node[] defines = new Node[decls.size()];
+			for(int i = 0; i < defines.length; i++)
+				defines[i] = (Node) decls.get(i).accept(this, null, null);
+			final Node body = compile(p.e());
+			return new Node() {
+				Value eval(Env env, Heap h) {
+					for(Node define : defines)
+						define.eval(initEnv, h);
+					return body.eval(initEnv, h);
+				}
+			};
+		}
+
+		public Node visit(DefineDecl d, Env env, Heap h) {
+			final String name = d.name();
+			final Node value_exp = compile(d.value_exp());
+			return new Node() {
+				Value eval(Env env, Heap h) {
+					h.hold(initEnv.define(name, value_exp.eval(initEnv, h))); // Other threads may still use it.
+					return UnitVal.v;
+				}
+			};
+		}
+	}
+}
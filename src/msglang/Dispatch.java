@@ -0,0 +1,99 @@
+package msglang;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import msglang.AST.*;
+
+/**
+ * Picks the clause of a process that handles a message, by the arity of the
+ * message and by its first value, with at most one hash lookup rather than
+ * by trying the clauses in turn.
+ *
+ * The table gives the same answer as trying the clauses in order: a tagged
+ * clause that follows an untagged clause of the same arity is unreachable
+ * and left out, and of clauses with the same tag and arity only the first
+ * is kept.
+ *
+ * @author hridesh
+ *
+ */
+public class Dispatch {
+	/* By arity: the clauses with tags, keyed by tag; or null if none. */
+	private final List<Map<Object, Integer>> _tagged;
+	/* By arity: the untagged clause, or -1 if none. */
+	private final int[] _untagged;
+
+	public Dispatch(List<Clause> clauses) {
+		int max = 0;
+		for(Clause c : clauses)
+			max = Math.max(max, c.arity());
+		_tagged = new ArrayList<Map<Object, Integer>>(max + 1);
+		for(int arity = 0; arity <= max; arity++)
+			_tagged.add(null);
+		_untagged = new int[max + 1];
+		Arrays.fill(_untagged, -1);
+		for(int i = 0; i < clauses.size(); i++) {
+			Clause c = clauses.get(i);
+			int arity = c.arity();
+			if(_untagged[arity] >= 0) // Shadowed by an earlier clause.
+				continue;
+			if(c.tag() == null) {
+				_untagged[arity] = i;
+				continue;
+			}
+			Map<Object, Integer> tagged = _tagged.get(arity);
+			if(tagged == null)
+				_tagged.set(arity, tagged = new HashMap<Object, Integer>());
+			Object key = key(c.tag());
+			if(!tagged.containsKey(key))
+				tagged.put(key, i);
+		}
+	}
+
+	/* Whether some clause takes messages of this arity. */
+	public boolean accepts(int arity) {
+		return arity < _untagged.length && (_untagged[arity] >= 0 || _tagged.get(arity) != null);
+	}
+
+	/* The index of the clause for message, or -1 if none matches. */
+	public int select(List<Value> message) {
+		int arity = message.size();
+		if(arity >= _untagged.length)
+			return -1;
+		Map<Object, Integer> tagged = _tagged.get(arity);
+		if(tagged != null) {
+			Integer clause = tagged.get(key(message.get(0)));
+			if(clause != null)
+				return clause;
+		}
+		return _untagged[arity];
+	}
+
+	private static Object key(Exp tag) {
+		if(tag instanceof NumExp)
+			return number(((NumExp) tag).v());
+		if(tag instanceof StrExp)
+			return ((StrExp) tag).v();
+		return ((BoolExp) tag).v();
+	}
+
+	/* Values that no tag equals map to null, which no tag has as its key. */
+	private static Object key(Value value) {
+		if(value instanceof Value.NumVal)
+			return number(((Value.NumVal) value).v());
+		if(value instanceof Value.StringVal)
+			return ((Value.StringVal) value).v();
+		if(value instanceof Value.BoolVal)
+			return ((Value.BoolVal) value).v();
+		return null;
+	}
+
+	/* Boxed doubles are equal only if their bits are, but -0.0 = 0.0. */
+	private static Object number(double v) {
+		return v == 0 ? 0.0 : v;
+	}
+}
@@ -1,8 +1,8 @@
 package msglang;
 
+import java.util.Collection;
 import java.util.List;
-
-import msglang.Value.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Representation of an environment, which maps variables to values.
@@ -28,49 +28,59 @@ public interface Env {
 		public boolean isEmpty() { return true; }
 	}
 	
-	static public class ExtendEnv implements Env {
-		private Env _saved_env; 
-		private String _var; 
-		private Value _val; 
-		public ExtendEnv(Env saved_env, String var, Value val){
-			_saved_env = saved_env;
-			_var = var;
-			_val = val;
+	/**
+	 * The top-level scope, holding built-in procedures and every name bound
+	 * by define. Unlike the other environments it is mutable: a define adds
+	 * (or replaces) a binding in place, so closures created earlier see it
+	 * without their own environment having to be rebuilt.
+	 */
+	static public class GlobalEnv implements Env {
+		private final ConcurrentHashMap<String, Value> _bindings = new ConcurrentHashMap<String, Value>();
+		public Value get (String search_var) {
+			Value val = _bindings.get(search_var);
+			if (val == null)
+				throw new LookupException("No binding found for name: " + search_var);
+			return val;
 		}
-		public synchronized Value get (String search_var) {
-			if (search_var.equals(_var))
-				return _val;
-			return _saved_env.get(search_var);
+		/* Returns the value that val replaces, if any. */
+		public Value define (String var, Value val) {
+			return _bindings.put(var, val);
 		}
-		public boolean isEmpty() { return false; }
-		public Env saved_env() { return _saved_env; }
-		public String var() { return _var; }
-		public Value val() { return _val; }
+		public Collection<Value> values() { return _bindings.values(); }
+		public boolean isEmpty() { return _bindings.isEmpty(); }
 	}
 
-	static public class ExtendEnvRec implements Env {
-		private Env _saved_env;
-		private List<String> _names;
-		private List<Value.FunVal> _funs;
-		public Env saved_env() { return _saved_env; }
-		public List<String> names() { return _names; }
-		public List<FunVal> vals() { return _funs; }
-		public ExtendEnvRec(Env saved_env, List<String> names, List<Value.FunVal> funs){
+	/**
+	 * An environment frame that binds several variables at once, e.g. the
+	 * formals of a call or the names of a let. Values are kept in an array so
+	 * that a variable whose lexical address was computed by the Resolver can
+	 * be looked up by (depth, index) without comparing any names.
+	 */
+	static public class FrameEnv implements Env {
+		private final Env _saved_env;
+		private final List<String> _names;
+		private final Value[] _slots;
+		public FrameEnv(Env saved_env, List<String> names, Value[] slots){
 			_saved_env = saved_env;
 			_names = names;
-			_funs = funs;
+			_slots = slots;
 		}
+		public Env saved_env() { return _saved_env; }
+		public List<String> names() { return _names; }
+		public Value[] slots() { return _slots; }
 		public boolean isEmpty() { return false; }
 		public Value get (String search_var) {
-			int size = _names.size();
-			for(int index = 0; index < size; index++) {
-				if (search_var.equals(_names.get(index))) {
-					FunVal f = _funs.get(index);
-					return new Value.FunVal(this, f.formals(), f.body());				
-				}
-			}
+			for(int index = _names.size() - 1; index >= 0; index--)
+				if (search_var.equals(_names.get(index)))
+					return _slots[index];
 			return _saved_env.get(search_var);
 		}
+		public Value get (int depth, int index) {
+			FrameEnv frame = this;
+			for(; depth > 0; depth--)
+				frame = (FrameEnv) frame._saved_env;
+			return frame._slots[index];
+		}
 	}
 
 }
@@ -1,4 +1,9 @@
 package msglang;
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashSet;
 import java.util.List;
 
 import msglang.AST.ProcExp;
@@ -15,37 +20,73 @@ import static msglang.Value.*;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class Evaluator implements Visitor<Value> {
 	
 	Printer.Formatter ts = new Printer.Formatter();
 
-	Env initEnv = initialEnv(); //New for definelang    
+	GlobalEnv initEnv = initialEnv(); //New for definelang    
     
     Value valueOf(Program p) {
-    	Heap heap = new Heap16Bit();
+    	Heap heap = _heaps.make();
 		return (Value) p.accept(this, initEnv, heap);
 	}
 	
 	@Override
 	public Value visit(AddExp e, Env env, Heap h) {
-		List<Exp> operands = e.all();
-		double result = 0;
-		for(Exp exp: operands) {
-			NumVal intermediate = (NumVal) exp.accept(this, env, h); // Dynamic type-checking
-			result += intermediate.v(); //Semantics of AddExp in terms of the target language.
+		return NumVal.of(number(e, env, h));
+	}
+
+	/* Evaluates the numeric expression e without boxing the intermediate
+	 * results of nested arithmetic. */
+	double number(Exp e, Env env, Heap h) {
+		if(e instanceof NumExp)
+			return ((NumExp) e).v();
+		if(e instanceof AddExp) {
+			double result = 0;
+			for(Exp exp: ((AddExp) e).all())
+				result += number(exp, env, h); //Semantics of AddExp in terms of the target language.
+			return result;
+		}
+		if(e instanceof MultExp) {
+			double result = 1;
+			for(Exp exp: ((MultExp) e).all())
+				result *= number(exp, env, h); //Semantics of MultExp.
+			return result;
 		}
-		return new NumVal(result);
+		if(e instanceof SubExp) {
+			List<Exp> operands = ((SubExp) e).all();
+			double result = number(operands.get(0), env, h);
+			for(int i=1; i<operands.size(); i++)
+				result = result - number(operands.get(i), env, h);
+			return result;
+		}
+		if(e instanceof DivExp) {
+			List<Exp> operands = ((DivExp) e).all();
+			double result = number(operands.get(0), env, h);
+			for(int i=1; i<operands.size(); i++)
+				result = result / number(operands.get(i), env, h);
+			return result;
+		}
+		NumVal value = (NumVal) e.accept(this, env, h); // Dynamic type-checking
+		return value.v();
 	}
 	
 	@Override
 	public Value visit(UnitExp e, Env env, Heap h) {
-		return new UnitVal();
+		return UnitVal.v;
 	}
 
 	@Override
 	public Value visit(NumExp e, Env env, Heap h) {
-		return new NumVal(e.v());
+		return NumVal.of(e.v());
 	}
 
 	@Override
@@ -55,19 +96,12 @@ public class Evaluator implements Visitor<Value> {
 
 	@Override
 	public Value visit(BoolExp e, Env env, Heap h) {
-		return new BoolVal(e.v());
+		return BoolVal.of(e.v());
 	}
 
 	@Override
 	public Value visit(DivExp e, Env env, Heap h) {
-		List<Exp> operands = e.all();
-		NumVal lVal = (NumVal) operands.get(0).accept(this, env, h);
-		double result = lVal.v(); 
-		for(int i=1; i<operands.size(); i++) {
-			NumVal rVal = (NumVal) operands.get(i).accept(this, env, h);
-			result = result / rVal.v();
-		}
-		return new NumVal(result);
+		return NumVal.of(number(e, env, h));
 	}
 
 	@Override
@@ -77,59 +111,38 @@ public class Evaluator implements Visitor<Value> {
 
 	@Override
 	public Value visit(MultExp e, Env env, Heap h) {
-		List<Exp> operands = e.all();
-		double result = 1;
-		for(Exp exp: operands) {
-			NumVal intermediate = (NumVal) exp.accept(this, env, h); // Dynamic type-checking
-			result *= intermediate.v(); //Semantics of MultExp.
-		}
-		return new NumVal(result);
+		return NumVal.of(number(e, env, h));
 	}
 
 	@Override
 	public Value visit(Program p, Env env, Heap h) {
-		for(DefineDecl d: p.decls())
-			d.accept(this, initEnv, h);
-		return (Value) p.e().accept(this, initEnv, h);
+		h.enter(initEnv);
+		Value value = null;
+		try {
+			for(DefineDecl d: p.decls())
+				d.accept(this, initEnv, h);
+			return value = (Value) p.e().accept(this, initEnv, h);
+		} finally {
+			h.leave(value);
+		}
 	}
 
 	@Override
 	public Value visit(SubExp e, Env env, Heap h) {
-		List<Exp> operands = e.all();
-		NumVal lVal = (NumVal) operands.get(0).accept(this, env, h);
-		double result = lVal.v();
-		for(int i=1; i<operands.size(); i++) {
-			NumVal rVal = (NumVal) operands.get(i).accept(this, env, h);
-			result = result - rVal.v();
-		}
-		return new NumVal(result);
+		return NumVal.of(number(e, env, h));
 	}
 
 	@Override
 	public Value visit(VarExp e, Env env, Heap h) {
 		// Previously, all variables had value 42. New semantics.
-		return env.get(e.name());
+		if(e.depth() >= 0)
+			return ((FrameEnv) env).get(e.depth(), e.index());
+		return initEnv.get(e.name());
 	}	
 
 	@Override
 	public Value visit(LetExp e, Env env, Heap h) { // New for varlang.
-		List<String> names = e.names();
-		List<Exp> value_exps = e.value_exps();
-		List<Value> values = new ArrayList<Value>(value_exps.size());
-		
-		for(Exp exp : value_exps){
-			Value value = (Value)exp.accept(this, env, h);
-			if(! (value instanceof DynamicError))
-				values.add(value);
-			else 
-				return value;
-		}
-		
-		Env new_env = env;
-		for (int index = 0; index < names.size(); index++)
-			new_env = new ExtendEnv(new_env, names.get(index), values.get(index));
-
-		return (Value) e.body().accept(this, new_env, h);		
+		return tail(e, env, h);
 	}	
 	
 	@Override
@@ -137,8 +150,8 @@ public class Evaluator implements Visitor<Value> {
 		String name = e.name();
 		Exp value_exp = e.value_exp();
 		Value value = (Value) value_exp.accept(this, env, h);
-		initEnv = new ExtendEnv(initEnv, name, value);
-		return new Value.UnitVal();		
+		h.hold(initEnv.define(name, value)); // Other threads may still use it.
+		return Value.UnitVal.v;		
 	}	
 
 	@Override
@@ -148,79 +161,195 @@ public class Evaluator implements Visitor<Value> {
 	
 	@Override
 	public Value visit(CallExp e, Env env, Heap h) { // New for funclang.
-		Object result = e.operator().accept(this, env, h);
-		if(!(result instanceof Value.FunVal))
-			return new Value.DynamicError("Operator not a function in call " +  ts.visit(e, env, h));
-		Value.FunVal operator =  (Value.FunVal) result; //Dynamic checking
-		List<Exp> operands = e.operands();
+		return tail(e, env, h);
+	}
 
-		// Call-by-value semantics
-		List<Value> actuals = new ArrayList<Value>(operands.size());
-		for(Exp exp : operands) 
-			actuals.add((Value)exp.accept(this, env, h));
-		
-		List<String> formals = operator.formals();
-		if (formals.size()!=actuals.size())
+	/* Binds the actuals of a call to the formals of operator and evaluates
+	 * its body. Used by code compiled by the BytecodeCompiler. */
+	Value call(CallExp e, Value.FunVal operator, Value[] actuals, Env env, Heap h) {
+		Env fun_env = bind(operator, actuals);
+		if(fun_env == null)
 			return new Value.DynamicError("Argument mismatch in call " + ts.visit(e, env, h));
+		h.enter(fun_env);
+		Value value = null;
+		try {
+			return value = complete(new TailCall(operator, fun_env), h);
+		} finally {
+			h.leave(value);
+		}
+	}
 
-		Env closure_env = operator.env();
-		Env fun_env = appendEnv(closure_env, initEnv);
-		for (int index = 0; index < formals.size(); index++)
-			fun_env = new ExtendEnv(fun_env, formals.get(index), actuals.get(index));
-		
-		return (Value) operator.body().accept(this, fun_env, h);
+	/* Like call, but for a call in tail position of compiled code: instead of
+	 * evaluating the body it returns a TailCall for the caller to run. */
+	Value tailCall(CallExp e, Value.FunVal operator, Value[] actuals, Env env, Heap h) {
+		Env fun_env = bind(operator, actuals);
+		if(fun_env == null)
+			return new Value.DynamicError("Argument mismatch in call " + ts.visit(e, env, h));
+		return new TailCall(operator, fun_env);
 	}
-	
-	/* Helper for CallExp */
-	/***
-	 * Create an env that has bindings from fst appended to bindings from snd.
-	 * The order of bindings is bindings from fst followed by that from snd.
-	 * @param fst
-	 * @param snd
-	 * @return
+
+	/**
+	 * A call that compiled code returns from tail position rather than making
+	 * it, so that its Java frame is gone before the callee runs. It is never
+	 * visible to programs: whoever runs compiled code passes its result
+	 * through complete.
+	 */
+	static class TailCall implements Value {
+		private final Value.FunVal _operator;
+		private final Env _env;
+		TailCall(Value.FunVal operator, Env env) {
+			_operator = operator;
+			_env = env;
+		}
+		Value.FunVal operator() { return _operator; }
+		Env env() { return _env; }
+		public String tostring() { return "tail call"; }
+	}
+
+	/* Returns value, or the result of making it if it is a TailCall, in the
+	 * current frame of h. */
+	Value complete(Value value, Heap h) {
+		if(!(value instanceof TailCall))
+			return value;
+		TailCall t = (TailCall) value;
+		value = runCompiled(t._operator, t._env, h);
+		if(value == null)
+			return tail(t._operator.body(), t._env, h);
+		if(value instanceof TailCall)
+			return tail(((TailCall) value)._operator.body(), ((TailCall) value)._env, h);
+		return value;
+	}
+
+	/* Runs the compiled body of f, and the compiled bodies of whatever it
+	 * tail-calls. Returns null if f has no compiled body, or the TailCall to
+	 * the first function without one. */
+	private Value runCompiled(Value.FunVal f, Env fun_env, Heap h) {
+		h.jump(fun_env);
+		Value value = compiled(f, fun_env, h);
+		while(value instanceof TailCall) {
+			TailCall t = (TailCall) value;
+			h.jump(t._env);
+			Value next = compiled(t._operator, t._env, h);
+			if(next == null)
+				return t;
+			value = next;
+		}
+		return value;
+	}
+
+	/* Returns the environment in which the body of operator runs, or null if
+	 * the number of actuals does not match its formals. */
+	private Env bind(Value.FunVal operator, Value[] actuals) {
+		List<String> formals = operator.formals();
+		if (formals.size()!=actuals.length)
+			return null;
+		// Only the formals need a new frame: free variables of the body are
+		// looked up in initEnv, which every closure environment ends in.
+		return new FrameEnv(operator.env(), formals, actuals);
+	}
+
+	/* Runs compiled code for the body of f, if a backend has any, and
+	 * returns null otherwise. Compiled code may return a TailCall. */
+	Value compiled(Value.FunVal f, Env fun_env, Heap h) {
+		return null;
+	}
+
+	/**
+	 * Evaluates e, which is in tail position. Instead of recursing into the
+	 * body of a call, or into the branch of an if or the body of a let or
+	 * letrec, this loops with the expression and environment replaced, so
+	 * iterative recursion runs in constant Java stack. Everything else is
+	 * evaluated by its visit method as usual, in a frame of h of its own.
 	 */
-	private Env appendEnv(Env fst, Env snd){
-		if(fst.isEmpty()) return snd;
-		if(fst instanceof ExtendEnv) {
-			ExtendEnv f = (ExtendEnv) fst;
-			return new ExtendEnv(appendEnv(f.saved_env(),snd), f.var(), f.val());
+	private Value tail(Exp e, Env env, Heap h) {
+		h.enter(env);
+		Value value = null;
+		try {
+			return value = loop(e, env, h);
+		} finally {
+			h.leave(value);
+		}
+	}
+
+	private Value loop(Exp e, Env env, Heap h) {
+		while(true) {
+			if(e instanceof IfExp) { // New for funclang.
+				IfExp i = (IfExp) e;
+				Object result = i.conditional().accept(this, env, h);
+				if(!(result instanceof Value.BoolVal))
+					return new Value.DynamicError("Condition not a boolean in expression " +  ts.visit(i, env, h));
+				Value.BoolVal condition =  (Value.BoolVal) result; //Dynamic checking
+				e = condition.v() ? i.then_exp() : i.else_exp();
+			} else if(e instanceof LetExp) { // New for varlang.
+				LetExp l = (LetExp) e;
+				List<Exp> value_exps = l.value_exps();
+				Value[] values = new Value[value_exps.size()];
+				for(int index = 0; index < values.length; index++){
+					Value value = (Value) value_exps.get(index).accept(this, env, h);
+					if(value instanceof DynamicError)
+						return value;
+					values[index] = value;
+				}
+				env = new FrameEnv(env, l.names(), values);
+				e = l.body();
+			} else if(e instanceof LetrecExp) { // New for reclang.
+				LetrecExp l = (LetrecExp) e;
+				List<Exp> fun_exps = l.fun_exps();
+				Value[] funs = new Value[fun_exps.size()];
+				// The functions close over the frame that binds them.
+				env = new FrameEnv(env, l.names(), funs);
+				for(int index = 0; index < funs.length; index++) 
+					funs[index] = (Value) fun_exps.get(index).accept(this, env, h);
+				e = l.body();
+			} else if(e instanceof CallExp) { // New for funclang.
+				CallExp c = (CallExp) e;
+				Object result = c.operator().accept(this, env, h);
+				if(!(result instanceof Value.FunVal))
+					return new Value.DynamicError("Operator not a function in call " +  ts.visit(c, env, h));
+				Value.FunVal operator =  (Value.FunVal) result; //Dynamic checking
+				List<Exp> operands = c.operands();
+
+				// Call-by-value semantics
+				Value[] actuals = new Value[operands.size()];
+				for(int index = 0; index < actuals.length; index++) 
+					actuals[index] = (Value) operands.get(index).accept(this, env, h);
+
+				Env fun_env = bind(operator, actuals);
+				if(fun_env == null)
+					return new Value.DynamicError("Argument mismatch in call " + ts.visit(c, env, h));
+				Value value = runCompiled(operator, fun_env, h);
+				if(value == null) {
+					env = fun_env;
+					e = operator.body();
+				} else if(value instanceof TailCall) {
+					env = ((TailCall) value)._env;
+					e = ((TailCall) value)._operator.body();
+				} else
+					return value;
+			} else {
+				return (Value) e.accept(this, env, h);
+			}
 		}
-		ExtendEnvRec f = (ExtendEnvRec) fst;
-		return new ExtendEnvRec(appendEnv(f.saved_env(),snd), f.names(), f.vals());
 	}
-	/* End: helper for CallExp */
 	
 	@Override
 	public Value visit(IfExp e, Env env, Heap h) { // New for funclang.
-		Object result = e.conditional().accept(this, env, h);
-		if(!(result instanceof Value.BoolVal))
-			return new Value.DynamicError("Condition not a boolean in expression " +  ts.visit(e, env, h));
-		Value.BoolVal condition =  (Value.BoolVal) result; //Dynamic checking
-		
-		if(condition.v())
-			return (Value) e.then_exp().accept(this, env, h);
-		else return (Value) e.else_exp().accept(this, env, h);
+		return tail(e, env, h);
 	}
 
 	@Override
 	public Value visit(LessExp e, Env env, Heap h) { // New for funclang.
-		Value.NumVal first = (Value.NumVal) e.first_exp().accept(this, env, h);
-		Value.NumVal second = (Value.NumVal) e.second_exp().accept(this, env, h);
-		return new Value.BoolVal(first.v() < second.v());
+		return Value.BoolVal.of(number(e.first_exp(), env, h) < number(e.second_exp(), env, h));
 	}
 	
 	@Override
 	public Value visit(EqualExp e, Env env, Heap h) { // New for funclang.
-		Value.NumVal first = (Value.NumVal) e.first_exp().accept(this, env, h);
-		Value.NumVal second = (Value.NumVal) e.second_exp().accept(this, env, h);
-		return new Value.BoolVal(first.v() == second.v());
+		return Value.BoolVal.of(number(e.first_exp(), env, h) == number(e.second_exp(), env, h));
 	}
 
 	@Override
 	public Value visit(GreaterExp e, Env env, Heap h) { // New for funclang.
-		Value.NumVal first = (Value.NumVal) e.first_exp().accept(this, env, h);
-		Value.NumVal second = (Value.NumVal) e.second_exp().accept(this, env, h);
-		return new Value.BoolVal(first.v() > second.v());
+		return Value.BoolVal.of(number(e.first_exp(), env, h) > number(e.second_exp(), env, h));
 	}
 	
 	@Override
@@ -247,14 +376,14 @@ public class Evaluator implements Visitor<Value> {
 		List<Exp> elemExps = e.elems();
 		int length = elemExps.size();
 		if(length == 0)
-			return new Value.Null();
+			return Value.Null.v;
 		
 		//Order of evaluation: left to right e.g. (list (+ 3 4) (+ 5 4)) 
 		Value[] elems = new Value[length];
 		for(int i=0; i<length; i++)
 			elems[i] = (Value) elemExps.get(i).accept(this, env, h);
 		
-		Value result = new Value.Null();
+		Value result = Value.Null.v;
 		for(int i=length-1; i>=0; i--) 
 			result = new PairVal(elems[i], result);
 		return result;
@@ -263,13 +392,13 @@ public class Evaluator implements Visitor<Value> {
 	@Override
 	public Value visit(NullExp e, Env env, Heap h) {
 		Value val = (Value) e.arg().accept(this, env, h);
-		return new BoolVal(val instanceof Value.Null);
+		return BoolVal.of(val instanceof Value.Null);
 	}
 	
 	@Override
 	public Value visit(IsListExp e, Env env, Heap h) {
 		Value val = (Value) e.exp().accept(this, env, h);
-		return new BoolVal(val instanceof Value.PairVal &&
+		return BoolVal.of(val instanceof Value.PairVal &&
 				((Value.PairVal) val).isList() ||
 				val instanceof Value.Null);
 	}
@@ -277,43 +406,43 @@ public class Evaluator implements Visitor<Value> {
 	@Override
 	public Value visit(IsPairExp e, Env env, Heap h) {
 		Value val = (Value) e.exp().accept(this, env, h);
-		return new BoolVal(val instanceof Value.PairVal);
+		return BoolVal.of(val instanceof Value.PairVal);
 	}
 
 	@Override
 	public Value visit(IsUnitExp e, Env env, Heap h) {
 		Value val = (Value) e.exp().accept(this, env, h);
-		return new BoolVal(val instanceof Value.UnitVal);
+		return BoolVal.of(val instanceof Value.UnitVal);
 	}
 
 	@Override
 	public Value visit(IsProcedureExp e, Env env, Heap h) {
 		Value val = (Value) e.exp().accept(this, env, h);
-		return new BoolVal(val instanceof Value.FunVal);
+		return BoolVal.of(val instanceof Value.FunVal);
 	}
 
 	@Override
 	public Value visit(IsStringExp e, Env env, Heap h) {
 		Value val = (Value) e.exp().accept(this, env, h);
-		return new BoolVal(val instanceof Value.StringVal);
+		return BoolVal.of(val instanceof Value.StringVal);
 	}
 
 	@Override
 	public Value visit(IsNumberExp e, Env env, Heap h) {
 		Value val = (Value) e.exp().accept(this, env, h);
-		return new BoolVal(val instanceof Value.NumVal);
+		return BoolVal.of(val instanceof Value.NumVal);
 	}
 
 	@Override
 	public Value visit(IsBooleanExp e, Env env, Heap h) {
 		Value val = (Value) e.exp().accept(this, env, h);
-		return new BoolVal(val instanceof Value.BoolVal);
+		return BoolVal.of(val instanceof Value.BoolVal);
 	}
 
 	@Override
 	public Value visit(IsNullExp e, Env env, Heap h) {
 		Value val = (Value) e.exp().accept(this, env, h);
-		return new BoolVal(val instanceof Value.Null);
+		return BoolVal.of(val instanceof Value.Null);
 	}
 
 	public Value visit(EvalExp e, Env env, Heap h) {
@@ -331,18 +460,163 @@ public class Evaluator implements Visitor<Value> {
 			return new Value.DynamicError(ex.getMessage());
 		}
 	}
+
+	public Value visit(RequireExp e, Env env, Heap h) {
+		StringVal fileName = (StringVal) e.file().accept(this, env, h);
+		return require(fileName.v(), h);
+	}
+
+	/**
+	 * A file loaded by require. Its definitions are in the global environment
+	 * and its value is that of its last expression. The first thread to
+	 * require it loads it; the others wait for its value.
+	 */
+	static class Module {
+		private final String _path;
+		private final AtomicBoolean _claimed = new AtomicBoolean();
+		private final CompletableFuture<Value> _value = new CompletableFuture<Value>();
+		/* The thread loading the module, once it has been claimed. */
+		private volatile Thread _loader = null;
+		private volatile List<String> _names = Collections.emptyList();
+		Module(String path) {
+			_path = path;
+		}
+		public String path() { return _path; }
+		/* The value of the module, or null while it is loading. */
+		public Value value() { return _value.getNow(null); }
+		public List<String> names() { return _names; }
+	}
+
+	private final ConcurrentHashMap<String, Module> _modules = new ConcurrentHashMap<String, Module>();
+	/* The modules each thread is loading, innermost first, then those that
+	 * the threads whose fork branches it runs are loading. */
+	private final ThreadLocal<Deque<Module>> _loading = new ThreadLocal<Deque<Module>>() {
+		protected Deque<Module> initialValue() { return new ArrayDeque<Module>(); }
+	};
+
+	/* The modules this thread is loading, for a fork to pass to its
+	 * branches. The fork joins its branches before those loads end, so a
+	 * branch that required one of them would wait for itself. */
+	List<Module> loading() {
+		Deque<Module> loading = _loading.get();
+		return loading.isEmpty() ? Collections.<Module>emptyList() : new ArrayList<Module>(loading);
+	}
+
+	/* Counts modules as loading on this thread too, while it runs a branch. */
+	void inherit(List<Module> modules) {
+		if(!modules.isEmpty())
+			_loading.get().addAll(modules);
+	}
+
+	void disinherit(List<Module> modules) {
+		if(modules.isEmpty())
+			return;
+		Deque<Module> loading = _loading.get();
+		for(int i = 0; i < modules.size(); i++)
+			loading.removeLast();
+	}
+	/* The module each thread is waiting for another thread to load. */
+	private final ConcurrentHashMap<Thread, Module> _waiting = new ConcurrentHashMap<Thread, Module>();
+
+	/* Loads the module in fileName unless this evaluator already has, and
+	 * returns its value. A thread that requires a module while another is
+	 * loading it waits for it, holding no lock; a require that would wait
+	 * for itself, in this thread or through others, is a cyclic require. */
+	Value require(String fileName, Heap h) {
+		String name = "" + System.getProperty("user.dir") + File.separator + fileName;
+		Module module = _modules.get(name);
+		if(module == null) {
+			// Files reached by different names are one module.
+			String path;
+			try {
+				path = new File(name).getCanonicalPath();
+			} catch (IOException ex) {
+				return new Value.DynamicError(ex.getMessage());
+			}
+			Module fresh = new Module(path);
+			module = _modules.putIfAbsent(path, fresh);
+			if(module == null)
+				module = fresh;
+			_modules.putIfAbsent(name, module);
+		}
+		Value value = module.value();
+		if(value != null)
+			return value;
+		if(module._claimed.compareAndSet(false, true))
+			return load(module, h);
+		if(_loading.get().contains(module))
+			return new Value.DynamicError("Cyclic require of " + fileName);
+		Thread self = Thread.currentThread();
+		_waiting.put(self, module);
+		try {
+			if(waitsFor(module, self))
+				return new Value.DynamicError("Cyclic require of " + fileName);
+			h.block();
+			try {
+				value = module._value.join();
+			} finally {
+				h.unblock();
+			}
+			h.hold(value);
+			return value;
+		} finally {
+			_waiting.remove(self);
+		}
+	}
+
+	/* Whether the loader of module is, through the modules that loaders are
+	 * waiting for, waiting for thread. Every thread records its wait before
+	 * it looks, so of two threads that would wait for each other at least
+	 * one sees the cycle. */
+	private boolean waitsFor(Module module, Thread thread) {
+		for(int hops = _modules.size(); module != null && hops >= 0; hops--) {
+			Thread loader = module._loader;
+			if(loader == null)
+				return false;
+			if(loader == thread)
+				return true;
+			module = _waiting.get(loader);
+		}
+		return false;
+	}
+
+	private Value load(Module module, Heap h) {
+		Deque<Module> loading = _loading.get();
+		module._loader = Thread.currentThread();
+		loading.push(module);
+		Value value = null;
+		try {
+			Program p = _reader.load(module._path);
+			List<String> names = new ArrayList<String>();
+			for(DefineDecl d: p.decls())
+				names.add(d.name());
+			module._names = names;
+			value = visit(p, initEnv, h);
+		} catch (IOException ex) {
+			value = new Value.DynamicError(ex.getMessage());
+		} finally {
+			loading.pop();
+			if(value == null)
+				value = new Value.DynamicError("Failed to load " + module._path);
+			if(value instanceof Value.DynamicError) {
+				// Forget the module, so that a later require tries again.
+				module._names = Collections.emptyList();
+				_modules.values().removeAll(Collections.singleton(module));
+			} else
+				h.root(value); // Later requires return it.
+			module._value.complete(value);
+		}
+		return value;
+	}
+
+	/* The modules that this evaluator has loaded. */
+	public Collection<Module> modules() {
+		return new HashSet<Module>(_modules.values());
+	}
 	
 	@Override
 	public Value visit(LetrecExp e, Env env, Heap h) { // New for reclang.
-		List<String> names = e.names();
-		List<Exp> fun_exps = e.fun_exps();
-		List<Value.FunVal> funs = new ArrayList<Value.FunVal>(fun_exps.size());
-		
-		for(Exp exp : fun_exps) 
-			funs.add((Value.FunVal)exp.accept(this, env, h));
-
-		Env new_env = new ExtendEnvRec(env, names, funs);
-		return (Value) e.body().accept(this, new_env, h);		
+		return tail(e, env, h);
 	}	
     
 	@Override
@@ -374,26 +648,28 @@ public class Evaluator implements Visitor<Value> {
 	public Value visit(FreeExp e, Env env, Heap h) { // New for reflang.
 		Exp value_exp = e.value_exp();
 		Value.RefVal loc = (Value.RefVal) value_exp.accept(this, env, h);
-		h.free(loc);
-		return new Value.UnitVal();
+		Value result = h.free(loc);
+		if(result instanceof Value.DynamicError)
+			return result;
+		return Value.UnitVal.v;
 	}
 
-	private Env initialEnv() {
-		Env initEnv = new EmptyEnv();
+	private GlobalEnv initialEnv() {
+		GlobalEnv initEnv = new GlobalEnv();
 
 		/* Procedure: (read <filename>). Following is same as (define read (lambda (file) (read file))) */
 		List<String> formals = new ArrayList<>();
 		formals.add("file");
-		Exp body = new AST.ReadExp(new VarExp("file"));
-		Value.FunVal readFun = new Value.FunVal(initEnv, formals, body);
-		initEnv = new Env.ExtendEnv(initEnv, "read", readFun);
+		Exp body = new Resolver().resolve(new LambdaExp(formals, new AST.ReadExp(new VarExp("file"))));
+		Value.FunVal readFun = new Value.FunVal(initEnv, formals, ((LambdaExp) body).body());
+		initEnv.define("read", readFun);
 
-		/* Procedure: (require <filename>). Following is same as (define require (lambda (file) (eval (read file)))) */
+		/* Procedure: (require <filename>). Evaluates the file the first time it is required only; see require. */
 		formals = new ArrayList<>();
 		formals.add("file");
-		body = new EvalExp(new AST.ReadExp(new VarExp("file")));
-		Value.FunVal requireFun = new Value.FunVal(initEnv, formals, body);
-		initEnv = new Env.ExtendEnv(initEnv, "require", requireFun);
+		body = new Resolver().resolve(new LambdaExp(formals, new RequireExp(new VarExp("file"))));
+		Value.FunVal requireFun = new Value.FunVal(initEnv, formals, ((LambdaExp) body).body());
+		initEnv.define("require", requireFun);
 
 		/* Add new built-in procedures here */ 
 
@@ -401,46 +677,240 @@ public class Evaluator implements Visitor<Value> {
 	}
 	
 	Reader _reader; 
+	private final Heap.Factory _heaps;
 	public Evaluator(Reader reader) {
+		this(reader, Heap16Bit.FACTORY);
+	}
+
+	/* An evaluator that runs each program in a heap made by heaps. */
+	public Evaluator(Reader reader, Heap.Factory heaps) {
 		_reader = reader;
+		_heaps = heaps;
+	}
+
+	private ActorRuntime _runtime = null;
+
+	/* The runtime that runs the actors created by this evaluator. */
+	public synchronized ActorRuntime runtime() {
+		if(_runtime == null)
+			_runtime = new ActorRuntime.Pool();
+		return _runtime;
+	}
+
+	public synchronized void setRuntime(ActorRuntime runtime) {
+		_runtime = runtime;
+	}
+
+	/* Messages an actor processes in one turn before it lets other actors
+	 * have its worker. */
+	static final int DEFAULT_BATCH = 64;
+
+	private volatile int _batch = DEFAULT_BATCH;
+
+	public int batch() {
+		return _batch;
 	}
 
+	/* Sets how many messages an actor processes per turn; 1 makes every
+	 * message a turn of its own. */
+	public void setBatch(int batch) {
+		_batch = Math.max(1, batch);
+	}
 
-	static class EvalThread extends Thread {
-		Env env;
-		Exp exp;
-		Evaluator evaluator;
-		Heap h;
-		private volatile Value value;
+	private Mailbox.Factory _mailboxes = Mailbox.Mpsc.FACTORY;
 
-		protected EvalThread(Env env, Exp exp, Evaluator evaluator, Heap h){
+	/* Makes the mailboxes of the actors created by this evaluator. */
+	public Mailbox.Factory mailboxes() {
+		return _mailboxes;
+	}
+
+	public void setMailboxes(Mailbox.Factory mailboxes) {
+		_mailboxes = mailboxes;
+	}
+
+	private ThreadFactory _threads = java.util.concurrent.Executors.defaultThreadFactory();
+
+	/* Makes the threads that evaluate the branches of a fork, or is null if
+	 * forks run on the shared fork/join pool. */
+	public ThreadFactory threads() {
+		return _threads;
+	}
+
+	/**
+	 * Evaluates both branches of every fork on threads from threads, so that
+	 * they run concurrently. With null, forks run on the fork/join pool
+	 * instead, where a fork may evaluate its branches one after the other;
+	 * programs whose branches wait for each other then never finish.
+	 */
+	public void setThreads(ThreadFactory threads) {
+		_threads = threads;
+	}
+
+	/**
+	 * Runs forks and actors on virtual threads from now on, if this JVM has
+	 * them, and returns whether it does.
+	 */
+	public boolean useVirtualThreads() {
+		ThreadFactory virtual = ActorRuntime.Virtual.factory();
+		if(virtual == null)
+			return false;
+		_threads = virtual;
+		setRuntime(new ActorRuntime.Virtual(virtual));
+		return true;
+	}
+
+
+	/**
+	 * A branch of a fork, evaluating to a value in an environment: an
+	 * expression for the Evaluator, a compiled node for the ClosureCompiler.
+	 */
+	static abstract class Branch {
+		abstract Value eval(Env env, Heap h);
+	}
+
+	/* The branch that evaluates exp with this evaluator. */
+	Branch branch(final Exp exp) {
+		return new Branch() {
+			Value eval(Env env, Heap h) {
+				return (Value) exp.accept(Evaluator.this, env, h);
+			}
+		};
+	}
+
+	/**
+	 * Evaluates one branch of a fork on a thread of its own.
+	 */
+	static class EvalThread implements Runnable {
+		private final Env env;
+		private final Branch branch;
+		private final Evaluator evaluator;
+		private final Heap h;
+		/* The branch stores its value here, where the forking frame holds it. */
+		private final Value[] values;
+		private final int index;
+		private final List<Module> loading;
+		private final Thread thread;
+
+		EvalThread(Env env, Branch branch, Evaluator evaluator, Heap h, ThreadFactory threads, Value[] values, int index){
 			this.env = env;
-			this.exp = exp;
+			this.branch = branch;
 			this.evaluator = evaluator;
 			this.h = h;
+			this.values = values;
+			this.index = index;
+			this.loading = evaluator.loading();
+			this.thread = threads.newThread(this);
 		}
 		
 		public void run(){
-			value = (Value) exp.accept(evaluator, env, h);
+			evaluator.inherit(loading);
+			h.enter(env);
+			try {
+				values[index] = branch.eval(env, h);
+			} finally {
+				h.leave(null);
+				evaluator.disinherit(loading);
+			}
+		}
+
+		public void start(){
+			thread.start();
 		}
 		
 		public Value value(){
+			h.block();
 			try {
-				this.join();
+				thread.join();
 			} catch (InterruptedException e) {
 				return new Value.DynamicError(e.getMessage());
+			} finally {
+				h.unblock();
 			}
-			return value;
+			return values[index];
 		}
 	}
 	
 
+	/**
+	 * Evaluates one branch of a fork on the fork/join pool.
+	 */
+	static class EvalTask extends RecursiveTask<Value> {
+		private static final long serialVersionUID = 1L;
+		private final Env env;
+		private final Branch branch;
+		private final Evaluator evaluator;
+		private final Heap h;
+		/* The task also stores its value here, where the forking frame holds it. */
+		private final Value[] values;
+		private final int index;
+		private final List<Module> loading;
+
+		EvalTask(Env env, Branch branch, Evaluator evaluator, Heap h, Value[] values, int index) {
+			this.env = env;
+			this.branch = branch;
+			this.evaluator = evaluator;
+			this.h = h;
+			this.values = values;
+			this.index = index;
+			this.loading = evaluator.loading();
+		}
+
+		protected Value compute() {
+			evaluator.inherit(loading);
+			h.enter(env);
+			try {
+				return values[index] = branch.eval(env, h);
+			} finally {
+				h.leave(null);
+				evaluator.disinherit(loading);
+			}
+		}
+
+		/* Joins the task, letting h collect meanwhile. */
+		Value join(Heap h) {
+			h.block();
+			try {
+				return join();
+			} finally {
+				h.unblock();
+			}
+		}
+	}
+
+	/* The pool that runs forks, shared by all evaluators. */
+	static final ForkJoinPool forks = ForkJoinPool.commonPool();
+
+	/* Once the current worker has this many more tasks queued than other
+	 * workers are likely to steal, forks evaluate both branches in turn. */
+	static final int FORK_CUTOFF = 3;
+
 	@Override
 	public Value visit(ForkExp e, Env env, Heap h) {
-        Exp fst = e.fst_exp();
-        Exp snd = e.snd_exp();
-        EvalThread fst_thread = new EvalThread(env, fst, this, h);
-        EvalThread snd_thread = new EvalThread(env, snd, this, h);
+		return fork(branch(e.fst_exp()), branch(e.snd_exp()), env, h);
+	}
+
+	/* Evaluates the branches of a fork and pairs their values. */
+	Value fork(Branch fst, Branch snd, Env env, Heap h) {
+        Value[] values = new Value[2]; // The values of the branches that run elsewhere.
+        ThreadFactory threads = _threads;
+        if(threads == null) { // Fork the second branch, evaluate the first here.
+        	boolean worker = ForkJoinTask.getPool() == forks;
+        	if(worker && ForkJoinTask.getSurplusQueuedTaskCount() > FORK_CUTOFF) {
+        		Value fst_val = fst.eval(env, h);
+        		return new Value.PairVal(fst_val, snd.eval(env, h));
+        	}
+        	h.hold(values);
+        	EvalTask snd_task = new EvalTask(env, snd, this, h, values, 1);
+        	if(worker)
+        		snd_task.fork();
+        	else
+        		forks.execute(snd_task);
+        	Value fst_val = fst.eval(env, h);
+        	return new Value.PairVal(fst_val, snd_task.join(h));
+        }
+        h.hold(values);
+        EvalThread fst_thread = new EvalThread(env, fst, this, h, threads, values, 0);
+        EvalThread snd_thread = new EvalThread(env, snd, this, h, threads, values, 1);
         fst_thread.start();
         snd_thread.start();
         Value fst_val = fst_thread.value();
@@ -455,7 +925,12 @@ public class Evaluator implements Visitor<Value> {
 		if(!(result instanceof Value.RefVal))
 			return new Value.DynamicError("Non-reference values cannot be locked in expression " +  ts.visit(e, env, h));
         Value.RefVal loc = (Value.RefVal) result;
-        loc.lock();
+        h.block();
+        try {
+        	loc.lock();
+        } finally {
+        	h.unblock();
+        }
         return loc;
 	}
 
@@ -477,14 +952,14 @@ public class Evaluator implements Visitor<Value> {
 
 	@Override
 	public Value visit(ProcExp e, Env env, Heap h) {
-		return new Value.ActorVal(env, e.formals(), e.body(), this, h);
+		return new Value.ActorVal(env, e, this, h);
 	}
 
 	@Override
 	public Value visit(SendExp e, Env env, Heap h) {
 		Object result = e.operator().accept(this, env, h);
 		if(!(result instanceof Value.ActorVal))
-			return new Value.DynamicError("Operator not an actor in send " +  ts.visit(e, env, h));
+			return notActor("send", e, env, h);
 		Value.ActorVal actor =  (Value.ActorVal) result; //Dynamic checking
 		List<Exp> operands = e.operands();
 
@@ -493,18 +968,95 @@ public class Evaluator implements Visitor<Value> {
 		for(Exp exp : operands) 
 			actuals.add((Value)exp.accept(this, env, h));
 
-		List<String> formals = actor.formals();
-		if (formals.size()!=actuals.size())
+		return send(actor, actuals, e, env, h);
+	}
+
+	@Override
+	public Value visit(AskExp e, Env env, Heap h) {
+		Object result = e.operator().accept(this, env, h);
+		if(!(result instanceof Value.ActorVal))
+			return notActor("ask", e, env, h);
+		Value.ActorVal actor =  (Value.ActorVal) result; //Dynamic checking
+		List<Exp> operands = e.operands();
+
+		List<Value> actuals = new ArrayList<Value>(operands.size());
+		for(Exp exp : operands) 
+			actuals.add((Value)exp.accept(this, env, h));
+
+		return ask(actor, actuals, e, env, h);
+	}
+
+	@Override
+	public Value visit(AwaitExp e, Env env, Heap h) {
+		Value result = awaited((Value) e.future().accept(this, env, h), e, env, h);
+		if(!(result instanceof Value.FutureVal))
+			return result;
+		Value timeout = e.timeout() == null ? null : (Value) e.timeout().accept(this, env, h);
+		return await((Value.FutureVal) result, timeout, e, env, h);
+	}
+
+	/* The error for a send or ask e whose operator is not an actor. */
+	Value notActor(String kind, Exp e, Env env, Heap h) {
+		return new Value.DynamicError("Operator not an actor in " + kind + " " + e.accept(ts, env, h));
+	}
+
+	/* Sends actuals to actor, as send e does. */
+	Value send(Value.ActorVal actor, List<Value> actuals, SendExp e, Env env, Heap h) {
+		if (!actor.accepts(actuals.size()))
 			return new Value.DynamicError("Argument mismatch in send " + ts.visit(e, env, h));
+		if(actor.receive(actuals))
+			return Value.UnitVal.v;
+		return undelivered(actor, e, env, h);
+	}
+
+	/* Sends actuals to actor with a future for its reply, as ask e does. */
+	Value ask(Value.ActorVal actor, List<Value> actuals, AskExp e, Env env, Heap h) {
+		if (!actor.accepts(actuals.size()))
+			return new Value.DynamicError("Argument mismatch in ask " + ts.visit(e, env, h));
+		Value.FutureVal reply = new Value.FutureVal();
+		h.hold(reply); // Until the await, only a temporary may refer to it.
+		if(actor.receive(new Value.ActorVal.Request(actuals, reply)))
+			return reply;
+		return undelivered(actor, e, env, h);
+	}
+
+	/* The error for a message that actor did not take in send or ask e. */
+	private Value undelivered(Value.ActorVal actor, Exp e, Env env, Heap h) {
+		if(actor.stopped())
+			return new Value.DynamicError("Message send to dead actor in " + e.accept(ts, env, h));
+		return new Value.DynamicError("Mailbox full in " + e.accept(ts, env, h));
+	}
 
+	/* The future, now held, that await e waits for, or the error to give
+	 * instead. */
+	Value awaited(Value result, AwaitExp e, Env env, Heap h) {
+		if(result instanceof Value.DynamicError) // A failed ask.
+			return result;
+		if(!(result instanceof Value.FutureVal))
+			return new Value.DynamicError("Operand not a future in " + ts.visit(e, env, h));
+		h.hold(result); // Its reply may refer to cells that nothing else does.
+		return result;
+	}
+
+	/* Waits for the reply to future, as await e does; a null timeout waits
+	 * for as long as it takes. */
+	Value await(Value.FutureVal future, Value timeout, AwaitExp e, Env env, Heap h) {
+		long millis = -1;
+		if(timeout != null) {
+			if(!(timeout instanceof Value.NumVal))
+				return new Value.DynamicError("Timeout not a number in " + ts.visit(e, env, h));
+			millis = Math.max(0, (long) ((Value.NumVal) timeout).v());
+		}
+		h.block();
+		Value reply;
 		try {
-			if(actor.receive(actuals)) {
-				return new Value.UnitVal();
-			}
-		} catch (InterruptedException e1) {
-			e1.printStackTrace();
+			reply = future.await(millis);
+		} finally {
+			h.unblock();
 		}
-		return new Value.DynamicError("Message send to dead actor in " + ts.visit(e, env, h));
+		if(reply == null)
+			return new Value.DynamicError("Timed out in " + ts.visit(e, env, h));
+		return reply;
 	}
 
 	@Override
@@ -522,7 +1074,7 @@ public class Evaluator implements Visitor<Value> {
 			return new Value.DynamicError("Self is not an actor in " +  ts.visit(e, env, h));
 		Value.ActorVal actor =  (Value.ActorVal) result; //Dynamic checking
 		actor.exit();
-		return new Value.UnitVal();
+		return Value.UnitVal.v;
 	}
 
 }
@@ -1,5 +1,18 @@
 package msglang;
 
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
 /**
  * Representation of a heap, which maps references to values.
  * 
@@ -17,58 +30,887 @@ public interface Heap {
 	Value free (Value.RefVal value);
 
 	Heap clone ();
+
+	/*
+	 * The evaluators tell the heap what running code holds, so that a heap
+	 * that collects can find every value still in use; the other heaps
+	 * ignore them. Each thread evaluates in a stack of frames. A frame has
+	 * an environment and holds the values returned to it, allocated or read
+	 * from cells since its last tail call.
+	 */
+
+	/* Starts a frame on this thread that evaluates in env. */
+	default void enter (Env env) {}
+
+	/* Ends the innermost frame; the frame below holds its result. */
+	default void leave (Value result) {}
+
+	/* The innermost frame makes a tail call into env, and holds nothing it
+	 * held before. */
+	default void jump (Env env) {}
+
+	/* The innermost frame holds value. */
+	default void hold (Value value) {}
+
+	/* The innermost frame holds whatever is stored in values, such as the
+	 * results of forked branches. */
+	default void hold (Value[] values) {}
+
+	/* This thread waits for other threads and touches no value until it
+	 * calls unblock. */
+	default void block () {}
+
+	default void unblock () {}
+
+	/* Keeps value, and all it refers to, in use until a matching unroot;
+	 * for values no frame holds, like those of scheduled actors. */
+	default void root (Value value) {}
+
+	default void unroot (Value value) {}
+
+	/**
+	 * Makes the heap of each program an Evaluator runs.
+	 */
+	interface Factory {
+		Heap make ();
+	}
 	
-	static public class Heap16Bit implements Heap {
+	/**
+	 * The heap of 65,536 cells that programs run in by default.
+	 */
+	static public class Heap16Bit extends SegmentedHeap {
 		static final int HEAP_SIZE = 65_536;
-		
-		Value[] _rep = new Value[HEAP_SIZE];
-		int index = 0;
-		
+
+		public Heap16Bit(){
+			super(HEAP_SIZE / SEGMENT_SIZE);
+		}
+
+		public static final Factory FACTORY = new Factory() {
+			public Heap make() { return new Heap16Bit(); }
+		};
+	}
+
+	/**
+	 * A heap of up to max_segments * SEGMENT_SIZE cells, allocated a segment
+	 * at a time as ref needs them, so that a program that never calls ref
+	 * costs no cells at all.
+	 *
+	 * Freed cells are linked into a free list and reused first. Each cell has
+	 * a generation that free bumps, and a RefVal records the generation it was
+	 * made with, so that use after free and double free are caught even once
+	 * the cell has been reused.
+	 *
+	 * Segments are copied on write: clone shares all of them with the copy,
+	 * and whichever heap first writes a shared segment copies it.
+	 */
+	static public class SegmentedHeap implements Heap, Cloneable {
+		static final int SEGMENT_BITS = 12, SEGMENT_SIZE = 1 << SEGMENT_BITS;
+		static final int MAX_SEGMENTS = 1 << 16;
+
+		private static class Segment {
+			final Value[] rep = new Value[SEGMENT_SIZE];
+			final int[] next = new int[SEGMENT_SIZE];
+			final int[] gen = new int[SEGMENT_SIZE];
+			Segment copy() {
+				Segment copy = new Segment();
+				System.arraycopy(rep, 0, copy.rep, 0, SEGMENT_SIZE);
+				System.arraycopy(next, 0, copy.next, 0, SEGMENT_SIZE);
+				System.arraycopy(gen, 0, copy.gen, 0, SEGMENT_SIZE);
+				return copy;
+			}
+		}
+
+		private final int _max_segments;
+		/* Replaced by a larger array as the heap grows; read without a lock. */
+		private volatile Segment[] _segments = new Segment[0];
+		/* Which segments are shared with a clone and must be copied before
+		 * they are written. */
+		private boolean[] _shared = new boolean[0];
+		private volatile int index = 0; // Cells from here on have never been allocated.
+		private int _free = -1;
+		private long _allocated = 0, _freed = 0;
+
+		public SegmentedHeap(){
+			this(MAX_SEGMENTS);
+		}
+
+		public SegmentedHeap(int max_segments){
+			_max_segments = max_segments;
+		}
+
+		public synchronized Value ref (Value value) {
+			int loc;
+			if(_free >= 0) {
+				loc = _free;
+				_free = segment(loc).next[loc & (SEGMENT_SIZE - 1)];
+			} else {
+				loc = index;
+				int s = loc >>> SEGMENT_BITS;
+				if(s >= _segments.length) {
+					if(s >= _max_segments)
+						return new Value.DynamicError("Out of memory error");
+					int length = Math.min(_max_segments, Math.max(4, 2 * s));
+					Segment[] grown = java.util.Arrays.copyOf(_segments, length);
+					grown[s] = new Segment();
+					_shared = java.util.Arrays.copyOf(_shared, length);
+					_segments = grown;
+				} else if(_segments[s] == null)
+					_segments[s] = new Segment();
+				index = loc + 1;
+			}
+			Segment segment = writable(loc);
+			int i = loc & (SEGMENT_SIZE - 1);
+			segment.rep[i] = value;
+			_allocated++;
+			return new Value.RefVal(loc, segment.gen[i]);
+		}
+
+		private Segment segment (int loc) {
+			return _segments[loc >>> SEGMENT_BITS];
+		}
+
+		/* Returns the segment of loc, first copying it if it is shared. */
+		private Segment writable (int loc) {
+			int s = loc >>> SEGMENT_BITS;
+			if(_shared[s]) {
+				_segments[s] = _segments[s].copy();
+				_shared[s] = false;
+			}
+			return _segments[s];
+		}
+
+		/* Returns the segment of loc, or null unless loc refers to a live cell. */
+		private Segment live (Value.RefVal loc) {
+			int l = loc.loc();
+			if(l < 0 || l >= index)
+				return null;
+			Segment segment = segment(l);
+			int i = l & (SEGMENT_SIZE - 1);
+			if(segment.gen[i] != loc.gen() || segment.rep[i] == null)
+				return null;
+			return segment;
+		}
+
+		private Value error (Value.RefVal loc, String misuse) {
+			if(loc.loc() < 0 || loc.loc() >= index)
+				return new Value.DynamicError("Segmentation fault at access " + loc.tostring());
+			return new Value.DynamicError(misuse + " at access " + loc.tostring());
+		}
+
+		public Value deref (Value.RefVal loc) {
+			Segment segment = live(loc);
+			if(segment == null)
+				return error(loc, "Use after free");
+			return segment.rep[loc.loc() & (SEGMENT_SIZE - 1)];
+		}
+
+		/* Writes under the lock even before the heap is cloned: a write that
+		 * found its segment unshared could otherwise land in it after a clone
+		 * has begun to share it, and so change the clone. */
+		public synchronized Value setref (Value.RefVal loc, Value value) {
+			if(live(loc) == null)
+				return error(loc, "Use after free");
+			return writable(loc.loc()).rep[loc.loc() & (SEGMENT_SIZE - 1)] = value;
+		}
+
+		public synchronized Value free (Value.RefVal loc) {
+			if(live(loc) == null)
+				return error(loc, "Double free");
+			Segment segment = writable(loc.loc());
+			int i = loc.loc() & (SEGMENT_SIZE - 1);
+			segment.rep[i] = null;
+			segment.gen[i]++;
+			segment.next[i] = _free;
+			_free = loc.loc();
+			_freed++;
+			return loc;
+		}
+
+		public long allocated() { return _allocated; }
+		public long freed() { return _freed; }
+		public long live() { return _allocated - _freed; }
+		/* The number of cells the segments allocated so far can hold. */
+		public long capacity() {
+			long segments = 0;
+			for(Segment segment : _segments)
+				if(segment != null)
+					segments++;
+			return segments * SEGMENT_SIZE;
+		}
+
+		/**
+		 * Returns a copy of this heap in time proportional to the number of
+		 * segments, not cells; see the class comment.
+		 */
+		public synchronized Heap clone () {
+			try {
+				SegmentedHeap _clone = (SegmentedHeap) super.clone();
+				for(int s = 0; s < _segments.length; s++)
+					_shared[s] = _segments[s] != null;
+				_clone._segments = _segments.clone();
+				_clone._shared = _shared.clone();
+				return _clone;
+			} catch (CloneNotSupportedException e) {
+				throw new AssertionError(e);
+			}
+		}
+
+		public static final Factory FACTORY = new Factory() {
+			public Heap make() { return new SegmentedHeap(); }
+		};
+	}
+
+	/**
+	 * A heap that forked branches and actors can allocate from at once
+	 * without a global lock.
+	 *
+	 * Cells come in chunks of CHUNK_SIZE. The heap hands out the cells of a
+	 * chunk from one of a few allocation stripes, picked by thread, by
+	 * bumping the stripe's range with a CAS; a stripe that runs out claims a
+	 * fresh chunk with one atomic increment. Stripes belong to the heap, not
+	 * to threads, so threads that come and go do not strand the rest of their
+	 * chunks, and a thread takes from the other stripes before it reports
+	 * that the heap is full. Once all chunks are claimed, ref reuses freed
+	 * cells, which free pushes on a lock-free stack. Cells and their
+	 * generations are atomic, so that free races safely with deref, set! and
+	 * a second free of the same cell.
+	 */
+	static public class ConcurrentHeap implements Heap {
+		static final int CHUNK_BITS = 8, CHUNK_SIZE = 1 << CHUNK_BITS;
+		static final int DEFAULT_CAPACITY = 1 << 20;
+
+		private static class Chunk {
+			final AtomicReferenceArray<Value> rep = new AtomicReferenceArray<Value>(CHUNK_SIZE);
+			final AtomicIntegerArray gen = new AtomicIntegerArray(CHUNK_SIZE);
+			final int[] next = new int[CHUNK_SIZE]; // Published by the CAS that pushes the cell.
+		}
+
+		private final AtomicReferenceArray<Chunk> _chunks;
+		private final AtomicInteger _claimed = new AtomicInteger();
+		/* Top of the stack of freed cells as (pops << 32 | loc + 1), with loc + 1
+		 * 0 when empty; the pop count keeps a stale top from being reinstated. */
+		private final AtomicLong _free = new AtomicLong();
+		/* The cells each stripe has still to hand out, as (next << 32 | end). */
+		private final AtomicLongArray _stripes;
+		private final LongAdder _allocated = new LongAdder(), _freed = new LongAdder();
+
+		public ConcurrentHeap() {
+			this(DEFAULT_CAPACITY);
+		}
+
+		public ConcurrentHeap(int capacity) {
+			_chunks = new AtomicReferenceArray<Chunk>((capacity + CHUNK_SIZE - 1) >>> CHUNK_BITS);
+			int stripes = 1;
+			while(stripes < 2 * Runtime.getRuntime().availableProcessors())
+				stripes <<= 1;
+			_stripes = new AtomicLongArray(stripes);
+		}
+
 		public Value ref (Value value) {
-			if(index >= HEAP_SIZE)
+			int loc = allocate();
+			if(loc < 0)
 				return new Value.DynamicError("Out of memory error");
-			Value.RefVal new_loc = new Value.RefVal(index);
-			_rep[index++] = value;
-			return new_loc;
+			Chunk chunk = _chunks.get(loc >>> CHUNK_BITS);
+			int i = loc & (CHUNK_SIZE - 1);
+			chunk.rep.set(i, value);
+			_allocated.increment();
+			return new Value.RefVal(loc, chunk.gen.get(i));
+		}
+
+		private int allocate () {
+			int stripe = (int) Thread.currentThread().getId() & (_stripes.length() - 1);
+			int loc = take(stripe);
+			if(loc < 0)
+				loc = claim(stripe);
+			if(loc < 0)
+				loc = pop();
+			for(int s = 0; loc < 0 && s < _stripes.length(); s++)
+				loc = take(s);
+			return loc;
+		}
+
+		/* The next cell of stripe, or -1 if it has none left. */
+		private int take (int stripe) {
+			while(true) {
+				long range = _stripes.get(stripe);
+				int next = (int) (range >>> 32);
+				if(next >= (int) range)
+					return -1;
+				if(_stripes.compareAndSet(stripe, range, range + (1L << 32)))
+					return next;
+			}
+		}
+
+		/* Claims a fresh chunk, returns its first cell and gives the rest to
+		 * stripe; or returns -1 if all chunks are claimed. */
+		private int claim (int stripe) {
+			if(_claimed.get() >= _chunks.length())
+				return -1;
+			int c = _claimed.getAndIncrement();
+			if(c >= _chunks.length())
+				return -1;
+			_chunks.set(c, new Chunk());
+			int first = c << CHUNK_BITS;
+			long rest = (long) (first + 1) << 32 | (first + CHUNK_SIZE);
+			while(true) {
+				long range = _stripes.get(stripe);
+				if((int) (range >>> 32) < (int) range) {
+					// Another thread has refilled the stripe meanwhile.
+					for(int loc = first + CHUNK_SIZE - 1; loc > first; loc--)
+						push(loc);
+					return first;
+				}
+				if(_stripes.compareAndSet(stripe, range, rest))
+					return first;
+			}
+		}
+
+		private int pop () {
+			while(true) {
+				long top = _free.get();
+				if((int) top == 0) // Empty, whatever the pop count.
+					return -1;
+				int loc = (int) top - 1;
+				int next = _chunks.get(loc >>> CHUNK_BITS).next[loc & (CHUNK_SIZE - 1)];
+				long pops = (top >>> 32) + 1;
+				if(_free.compareAndSet(top, pops << 32 | (next + 1L)))
+					return loc;
+			}
+		}
+
+		private void push (int loc) {
+			int[] next = _chunks.get(loc >>> CHUNK_BITS).next;
+			while(true) {
+				long top = _free.get();
+				next[loc & (CHUNK_SIZE - 1)] = (int) top - 1;
+				if(_free.compareAndSet(top, (top & 0xFFFFFFFF00000000L) | (loc + 1L)))
+					return;
+			}
+		}
+
+		/* Returns the chunk of loc if loc is a cell that has been allocated. */
+		private Chunk chunk (Value.RefVal loc) {
+			int l = loc.loc();
+			if(l < 0 || (l >>> CHUNK_BITS) >= _chunks.length())
+				return null;
+			return _chunks.get(l >>> CHUNK_BITS);
 		}
 
 		public Value deref (Value.RefVal loc) {
-			try {
-				return _rep[loc.loc()];
-			} catch (ArrayIndexOutOfBoundsException e) {
-				return new Value.DynamicError("Segmentation fault at access " + loc);
+			Chunk chunk = chunk(loc);
+			if(chunk == null)
+				return new Value.DynamicError("Segmentation fault at access " + loc.tostring());
+			int i = loc.loc() & (CHUNK_SIZE - 1);
+			Value value = chunk.rep.get(i);
+			if(value == null || chunk.gen.get(i) != loc.gen())
+				return new Value.DynamicError("Use after free at access " + loc.tostring());
+			return value;
+		}
+
+		public Value setref (Value.RefVal loc, Value value) {
+			Chunk chunk = chunk(loc);
+			if(chunk == null)
+				return new Value.DynamicError("Segmentation fault at access " + loc.tostring());
+			int i = loc.loc() & (CHUNK_SIZE - 1);
+			if(chunk.gen.get(i) != loc.gen() || chunk.rep.get(i) == null)
+				return new Value.DynamicError("Use after free at access " + loc.tostring());
+			chunk.rep.set(i, value);
+			return value;
+		}
+
+		public Value free (Value.RefVal loc) {
+			Chunk chunk = chunk(loc);
+			if(chunk == null)
+				return new Value.DynamicError("Segmentation fault at access " + loc.tostring());
+			int i = loc.loc() & (CHUNK_SIZE - 1);
+			if(chunk.rep.get(i) == null || !chunk.gen.compareAndSet(i, loc.gen(), loc.gen() + 1))
+				return new Value.DynamicError("Double free at access " + loc.tostring());
+			chunk.rep.set(i, null);
+			push(loc.loc());
+			_freed.increment();
+			return loc;
+		}
+
+		public long allocated() { return _allocated.sum(); }
+		public long freed() { return _freed.sum(); }
+		public long live() { return _allocated.sum() - _freed.sum(); }
+		public int chunksClaimed() { return Math.min(_claimed.get(), _chunks.length()); }
+
+		/**
+		 * Copies every claimed chunk and the stripes; take it while no other
+		 * thread uses the heap.
+		 */
+		public Heap clone () {
+			ConcurrentHeap _clone = new ConcurrentHeap(_chunks.length() << CHUNK_BITS);
+			for(int c = 0; c < _chunks.length(); c++) {
+				Chunk chunk = _chunks.get(c);
+				if(chunk == null)
+					continue;
+				Chunk copy = new Chunk();
+				for(int i = 0; i < CHUNK_SIZE; i++) {
+					copy.rep.set(i, chunk.rep.get(i));
+					copy.gen.set(i, chunk.gen.get(i));
+					copy.next[i] = chunk.next[i];
+				}
+				_clone._chunks.set(c, copy);
+			}
+			_clone._claimed.set(_claimed.get());
+			_clone._free.set(_free.get());
+			for(int s = 0; s < _stripes.length(); s++)
+				_clone._stripes.set(s, _stripes.get(s));
+			_clone._allocated.add(_allocated.sum());
+			_clone._freed.add(_freed.sum());
+			return _clone;
+		}
+
+		public static final Factory FACTORY = new Factory() {
+			public Heap make() { return new ConcurrentHeap(); }
+		};
+	}
+
+	/**
+	 * A heap that reclaims the cells a program can no longer reach, without
+	 * free, by marking and sweeping them.
+	 *
+	 * When ref finds the heap full it stops the world: it waits until every
+	 * other thread evaluating in the heap is blocked or at a safe point,
+	 * which is where it enters, leaves or jumps in a frame, or allocates. It
+	 * then marks the cells reachable from the roots, which are the
+	 * environments and held values of every frame of every thread, and the
+	 * rooted values: the scheduled actors, with their environments and the
+	 * messages in their mailboxes, and the values of loaded modules. Cells
+	 * that only unreachable cells refer to, including cycles and cells that
+	 * refer to themselves, stay unmarked. The sweep puts every unmarked cell
+	 * on the free list, and the other threads go on. The time from stopping
+	 * to going on is the pause of the collection.
+	 *
+	 * Only a ref made inside a frame collects. Code that uses the heap
+	 * directly, not through an evaluator, has no frames to mark from, and
+	 * gets an out of memory error when the heap is full.
+	 */
+	static public class CollectedHeap implements Heap {
+		static final int DEFAULT_CAPACITY = 65_536;
+
+		/* A collection is due once half the cells that were free after the
+		 * last one are in use, but only after at least a sixteenth of the
+		 * capacity has been allocated since: a heap full of live cells then
+		 * fails fast instead of marking on every allocation. */
+		static final int MIN_ALLOCATIONS = 16;
+
+		private static class Frame {
+			Env env;
+			final ArrayList<Object> held = new ArrayList<Object>(); // Values, and arrays of them.
+			/* Whether the thread started to run by entering this frame. */
+			boolean acquired;
+		}
+
+		/* The frames of one thread, innermost last. Only the thread itself
+		 * changes them, and only while it runs. */
+		private static class Stack {
+			final ArrayList<Frame> frames = new ArrayList<Frame>();
+			int depth = 0; // Frames from here on are kept for reuse.
+			boolean running = false; // Written under _world, by this thread only.
+			Frame top() { return frames.get(depth - 1); }
+			void push(Env env, boolean acquired) {
+				if(depth == frames.size())
+					frames.add(new Frame());
+				Frame frame = frames.get(depth++);
+				frame.env = env;
+				frame.acquired = acquired;
 			}
 		}
 
+		private final int _capacity;
+		private final Value[] _rep;
+		private final int[] _gen;
+		private final int[] _next; // Links of the free list.
+		private int _free = -1;
+		private volatile int index = 0; // Cells from here on have never been allocated.
+		private int _used = 0; // Cells that hold a value.
+		private int _trigger; // A collection is due once _used reaches it,
+		private long _allocated_at = 0; // and _allocated has reached this.
+		private long _allocated = 0, _freed = 0, _reclaimed = 0;
+
+		private final ThreadLocal<Stack> _stack = new ThreadLocal<Stack>() {
+			protected Stack initialValue() { return new Stack(); }
+		};
+		/* Guards what follows; threads wait on it while a collection runs. */
+		private final Object _world = new Object();
+		/* The stacks of the threads that have frames. */
+		private final Set<Stack> _stacks = Collections.newSetFromMap(new IdentityHashMap<Stack, Boolean>());
+		private int _running = 0;
+		/* Set from when a collection starts to wait for the other threads
+		 * until it lets them go on. */
+		private volatile boolean _stopping = false;
+		/* How many times each rooted value has been rooted. */
+		private IdentityHashMap<Value, Integer> _roots = new IdentityHashMap<Value, Integer>();
+		private long _collections = 0, _pause_nanos = 0, _max_pause_nanos = 0;
+
+		public CollectedHeap() {
+			this(DEFAULT_CAPACITY);
+		}
+
+		public CollectedHeap(int capacity) {
+			_capacity = capacity;
+			_rep = new Value[capacity];
+			_gen = new int[capacity];
+			_next = new int[capacity];
+			_trigger = capacity / 2;
+		}
+
+		public Value ref (Value value) {
+			Stack stack = _stack.get();
+			if(stack.running && _stopping)
+				pause(stack);
+			Value.RefVal loc = allocate(value, stack.running);
+			if(loc == null && stack.running) {
+				collect(stack);
+				loc = allocate(value, false);
+			}
+			if(loc == null)
+				return new Value.DynamicError("Out of memory error");
+			if(stack.running)
+				stack.top().held.add(loc);
+			return loc;
+		}
+
+		/* Returns a new cell holding value, or null if the heap is full or,
+		 * when the caller can collect, a collection is due. */
+		private synchronized Value.RefVal allocate (Value value, boolean collect) {
+			if(collect && due())
+				return null;
+			int loc;
+			if(_free >= 0) {
+				loc = _free;
+				_free = _next[loc];
+			} else if(index < _capacity) {
+				loc = index++;
+			} else
+				return null;
+			_rep[loc] = value;
+			_used++;
+			_allocated++;
+			return new Value.RefVal(loc, _gen[loc]);
+		}
+
+		private synchronized boolean due () {
+			return _used >= _trigger && _allocated >= _allocated_at;
+		}
+
+		private void release (int loc) {
+			_used--;
+			_rep[loc] = null;
+			_gen[loc]++;
+			_next[loc] = _free;
+			_free = loc;
+		}
+
+		private boolean live (Value.RefVal loc) {
+			int l = loc.loc();
+			return l >= 0 && l < index && _gen[l] == loc.gen() && _rep[l] != null;
+		}
+
+		public Value deref (Value.RefVal loc) {
+			if(!live(loc))
+				return error(loc, "Use after free");
+			Value value = _rep[loc.loc()];
+			hold(value);
+			return value;
+		}
+
 		public Value setref (Value.RefVal loc, Value value) {
-			try {
-				return _rep[loc.loc()] = value;
-			} catch (ArrayIndexOutOfBoundsException e) {
-				return new Value.DynamicError("Segmentation fault at access " + loc);
+			if(!live(loc))
+				return error(loc, "Use after free");
+			return _rep[loc.loc()] = value;
+		}
+
+		public synchronized Value free (Value.RefVal loc) {
+			if(!live(loc))
+				return error(loc, "Double free");
+			release(loc.loc());
+			_freed++;
+			return loc;
+		}
+
+		private Value error (Value.RefVal loc, String misuse) {
+			if(loc.loc() < 0 || loc.loc() >= index)
+				return new Value.DynamicError("Segmentation fault at access " + loc.tostring());
+			return new Value.DynamicError(misuse + " at access " + loc.tostring());
+		}
+
+		public void enter (Env env) {
+			Stack stack = _stack.get();
+			if(stack.running) {
+				stack.push(env, false);
+				if(_stopping)
+					pause(stack);
+			} else {
+				acquire(stack);
+				stack.push(env, true);
 			}
 		}
 
-		public Value free (Value.RefVal loc) {
+		public void leave (Value result) {
+			Stack stack = _stack.get();
+			Frame frame = stack.frames.get(--stack.depth);
+			frame.env = null;
+			frame.held.clear();
+			if(stack.depth > 0 && refers(result))
+				stack.top().held.add(result);
+			if(frame.acquired)
+				stop(stack);
+			else if(_stopping)
+				pause(stack);
+		}
+
+		public void jump (Env env) {
+			Stack stack = _stack.get();
+			if(!stack.running)
+				return;
+			Frame frame = stack.top();
+			frame.env = env;
+			frame.held.clear();
+			if(_stopping)
+				pause(stack);
+		}
+
+		public void hold (Value value) {
+			Stack stack = _stack.get();
+			if(stack.running && refers(value))
+				stack.top().held.add(value);
+		}
+
+		public void hold (Value[] values) {
+			Stack stack = _stack.get();
+			if(stack.running)
+				stack.top().held.add(values);
+		}
+
+		public void block () {
+			Stack stack = _stack.get();
+			if(stack.running)
+				stop(stack);
+		}
+
+		public void unblock () {
+			Stack stack = _stack.get();
+			if(stack.depth > 0 && !stack.running)
+				acquire(stack);
+		}
+
+		public void root (Value value) {
+			synchronized(_world) {
+				Integer count = _roots.get(value);
+				_roots.put(value, count == null ? 1 : count + 1);
+			}
+		}
+
+		public void unroot (Value value) {
+			synchronized(_world) {
+				Integer count = _roots.remove(value);
+				if(count != null && count > 1)
+					_roots.put(value, count - 1);
+			}
+		}
+
+		/* Whether value may lead to cells. */
+		private static boolean refers (Value value) {
+			return value instanceof Value.RefVal || value instanceof Value.PairVal || value instanceof Value.FunVal
+					|| value instanceof Value.ActorVal || value instanceof Value.FutureVal;
+		}
+
+		/* Makes the thread of stack run, once no collection is under way. */
+		private void acquire (Stack stack) {
+			synchronized(_world) {
+				boolean interrupted = false;
+				while(_stopping)
+					interrupted |= await();
+				_stacks.add(stack);
+				stack.running = true;
+				_running++;
+				if(interrupted)
+					Thread.currentThread().interrupt();
+			}
+		}
+
+		/* Stops the thread of stack from running, until it calls acquire. */
+		private void stop (Stack stack) {
+			synchronized(_world) {
+				stack.running = false;
+				if(stack.depth == 0)
+					_stacks.remove(stack);
+				if(--_running == 0 && _stopping)
+					_world.notifyAll();
+			}
+		}
+
+		/* The safe point: lets a collection that is waiting for this thread
+		 * run, and waits for it to end. */
+		private void pause (Stack stack) {
+			stop(stack);
+			acquire(stack);
+		}
+
+		/* Waits on _world; returns whether the thread was interrupted. */
+		private boolean await () {
 			try {
-				_rep[loc.loc()] = null;
-				//REMARK: students should add this location to free list.
-				return loc;
-			} catch (ArrayIndexOutOfBoundsException e) {
-				return new Value.DynamicError("Segmentation fault at access " + loc);
+				_world.wait();
+				return false;
+			} catch (InterruptedException e) {
+				return true;
+			}
+		}
+
+		/* Stops the other threads, marks and sweeps, and lets them go on. If
+		 * another thread is collecting already, waits for it instead, and if
+		 * another has just collected, does nothing. */
+		private void collect (Stack stack) {
+			synchronized(_world) {
+				if(_stopping) {
+					pause(stack);
+					return;
+				}
+				if(!due())
+					return;
+				long start = System.nanoTime();
+				_stopping = true;
+				stack.running = false;
+				_running--;
+				boolean interrupted = false;
+				while(_running > 0)
+					interrupted |= await();
+				synchronized(this) {
+					sweep(mark());
+					_trigger = _used + (_capacity - _used) / 2;
+					_allocated_at = _allocated + _capacity / MIN_ALLOCATIONS;
+				}
+				stack.running = true;
+				_running++;
+				_stopping = false;
+				_world.notifyAll();
+				long pause = System.nanoTime() - start;
+				_collections++;
+				_pause_nanos += pause;
+				_max_pause_nanos = Math.max(_max_pause_nanos, pause);
+				if(interrupted)
+					Thread.currentThread().interrupt();
+			}
+		}
+
+		/* Marks the cells reachable from the frames of all threads and from
+		 * the rooted values. */
+		private boolean[] mark () {
+			boolean[] marked = new boolean[index];
+			ArrayDeque<Object> work = new ArrayDeque<Object>();
+			for(Stack stack : _stacks)
+				for(int f = 0; f < stack.depth; f++) {
+					Frame frame = stack.frames.get(f);
+					push(work, frame.env);
+					for(Object held : frame.held)
+						push(work, held);
+				}
+			for(Value root : _roots.keySet())
+				push(work, root);
+			Set<Object> visited = Collections.newSetFromMap(new IdentityHashMap<Object, Boolean>());
+			while(!work.isEmpty()) {
+				Object next = work.pop();
+				if(next instanceof Value.RefVal) {
+					Value.RefVal loc = (Value.RefVal) next;
+					if(live(loc) && !marked[loc.loc()]) {
+						marked[loc.loc()] = true;
+						push(work, _rep[loc.loc()]);
+					}
+				} else if(visited.add(next))
+					trace(next, work);
+			}
+			return marked;
+		}
+
+		/* Pushes what next refers to directly. */
+		private static void trace (Object next, ArrayDeque<Object> work) {
+			if(next instanceof Value.PairVal) {
+				push(work, ((Value.PairVal) next).fst());
+				push(work, ((Value.PairVal) next).snd());
+			} else if(next instanceof Value.FunVal) {
+				push(work, ((Value.FunVal) next).env());
+			} else if(next instanceof Value.ActorVal) {
+				Value.ActorVal actor = (Value.ActorVal) next;
+				push(work, actor.env());
+				for(List<Value> message : actor.mailbox().messages())
+					for(Value value : message)
+						push(work, value);
+			} else if(next instanceof Value.FutureVal) {
+				push(work, ((Value.FutureVal) next).now());
+			} else if(next instanceof Env.FrameEnv) {
+				push(work, ((Env.FrameEnv) next).saved_env());
+				for(Value value : ((Env.FrameEnv) next).slots())
+					push(work, value);
+			} else if(next instanceof Env.GlobalEnv) {
+				for(Value value : ((Env.GlobalEnv) next).values())
+					push(work, value);
+			} else if(next instanceof Value[]) {
+				for(Value value : (Value[]) next)
+					push(work, value);
 			}
 		}
 
-		/***
-		 * Explanation: 
+		private static void push (ArrayDeque<Object> work, Object next) {
+			if(next instanceof Value ? refers((Value) next) : next != null)
+				work.push(next);
+		}
+
+		/* Puts the cells that are neither marked nor free on the free list. */
+		private void sweep (boolean[] marked) {
+			for(int loc = 0; loc < marked.length; loc++)
+				if(_rep[loc] != null && !marked[loc]) {
+					release(loc);
+					_reclaimed++;
+				}
+		}
+
+		public long allocated() { return _allocated; }
+		public long freed() { return _freed; }
+		/* Cells swept back without free. */
+		public long reclaimed() { return _reclaimed; }
+		public long collections() { synchronized(_world) { return _collections; } }
+		/* The total and the longest time that collections stopped the program. */
+		public long pauseNanos() { synchronized(_world) { return _pause_nanos; } }
+		public long maxPauseNanos() { synchronized(_world) { return _max_pause_nanos; } }
+
+		public String toString() {
+			synchronized(_world) {
+				return "heap: " + _allocated + " allocated, " + _freed + " freed, " + _reclaimed + " reclaimed in "
+						+ _collections + " collections, pauses " + _pause_nanos / 1_000_000 + "ms total, "
+						+ _max_pause_nanos / 1_000_000 + "ms max";
+			}
+		}
+
+		/**
+		 * Copies the cells and the roots into a new CollectedHeap; take it
+		 * while no program runs in this heap.
 		 */
-		public Heap clone () {
-			Heap16Bit _clone = new Heap16Bit(); 
-			for(int i = 0; i < HEAP_SIZE; i++)
-				_clone._rep[i] = this._rep[i];
+		public synchronized Heap clone () {
+			CollectedHeap _clone = new CollectedHeap(_capacity);
+			System.arraycopy(_rep, 0, _clone._rep, 0, index);
+			System.arraycopy(_gen, 0, _clone._gen, 0, index);
+			System.arraycopy(_next, 0, _clone._next, 0, index);
+			_clone._free = _free;
+			_clone.index = index;
+			_clone._used = _used;
+			_clone._trigger = _trigger;
+			_clone._allocated_at = _allocated_at;
+			_clone._allocated = _allocated;
+			_clone._freed = _freed;
+			_clone._reclaimed = _reclaimed;
+			synchronized(_world) {
+				_clone._roots = new IdentityHashMap<Value, Integer>(_roots);
+			}
 			return _clone;
 		}
-		
-		public Heap16Bit(){}
+
+		public static final Factory FACTORY = new Factory() {
+			public Heap make() { return new CollectedHeap(); }
+		};
 	}
 	
 }
@@ -22,15 +22,65 @@ public class Interpreter {
 				"or try  (let ((r (ref 342))) (let ((d (free r))) (deref r))) \n" +
 				"Press Ctrl + C to exit.");
 		Reader reader = new Reader();
-		Evaluator eval = new Evaluator(reader);
+		Heap.Factory heaps = Heap.Heap16Bit.FACTORY;
+		for(String arg : args) {
+			if(arg.equals("-segmented")) // A heap that grows beyond 64K cells as needed.
+				heaps = Heap.SegmentedHeap.FACTORY;
+			if(arg.equals("-gc")) // A heap that reclaims unreachable cells.
+				heaps = Heap.CollectedHeap.FACTORY;
+			if(arg.equals("-concurrent")) // A heap that threads allocate from without a lock.
+				heaps = Heap.ConcurrentHeap.FACTORY;
+		}
+		Evaluator eval = new Evaluator(reader, heaps);
+		for(String arg : args) {
+			if(arg.equals("-compile")) // Run programs on the closure-compiling engine.
+				eval = new ClosureCompiler(reader, heaps);
+			if(arg.equals("-jit")) { // Compile hot lambdas and processes to JVM bytecode.
+				if(BytecodeCompiler.available())
+					eval = new JitEvaluator(reader, heaps);
+				else {
+					System.out.println("The JIT needs Java 15 or later; compiling to closures instead.");
+					eval = new ClosureCompiler(reader, heaps);
+				}
+			}
+		}
+		for(String arg : args) {
+			if(arg.startsWith("-workers=")) // Size of the pool that runs actors.
+				eval.setRuntime(new ActorRuntime.Pool(Integer.parseInt(arg.substring("-workers=".length()))));
+			if(arg.equals("-mailbox=concurrent")) // Mailboxes that are ConcurrentLinkedQueues.
+				eval.setMailboxes(Mailbox.Concurrent.FACTORY);
+			if(arg.equals("-mailbox=deque")) // Mailboxes that are LinkedBlockingDeques.
+				eval.setMailboxes(Mailbox.Deque.FACTORY);
+			if(arg.startsWith("-mailbox=array:")) // Bounded mailboxes of the given size.
+				eval.setMailboxes(Mailbox.Array.factory(Integer.parseInt(arg.substring("-mailbox=array:".length()))));
+			if(arg.startsWith("-mailbox=bounded:")) { // Bounded mailboxes, e.g. -mailbox=bounded:1000:block
+				String[] bound = arg.substring("-mailbox=bounded:".length()).split(":");
+				Mailbox.Policy policy = bound.length > 1 ? Mailbox.Policy.valueOf(bound[1].toUpperCase()) : Mailbox.Policy.BLOCK;
+				eval.setMailboxes(Mailbox.Bounded.factory(Integer.parseInt(bound[0]), policy));
+			}
+			if(arg.startsWith("-batch=")) // Messages an actor processes per turn.
+				eval.setBatch(Integer.parseInt(arg.substring("-batch=".length())));
+			if(arg.equals("-forkjoin")) // Forks on the fork/join pool; their branches may run one after the other.
+				eval.setThreads(null);
+			if(arg.equals("-virtual") && !eval.useVirtualThreads()) // Forks and actors on virtual threads.
+				System.out.println("Virtual threads need Java 21 or later; using platform threads.");
+		}
+		boolean time = false;
+		for(String arg : args)
+			if(arg.equals("-time")) // Print how long each program took to evaluate.
+				time = true;
 		Printer printer = new Printer();
 		REPL: while (true) { // Read-Eval-Print-Loop (also known as REPL)
 			Program p = null;
 			try {
 				p = reader.read();
 				if(p._e == null) continue REPL;
+				long start = System.nanoTime();
 				Value val = eval.valueOf(p);
+				long millis = (System.nanoTime() - start) / 1000000;
 				printer.print(val);
+				if(time)
+					System.out.println("[" + millis + " ms]");
 			} catch (Env.LookupException e) {
 				printer.print(e);
 			} catch (IOException e) {
@@ -0,0 +1,147 @@
+package msglang;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import msglang.AST.*;
+import msglang.BytecodeCompiler.Code;
+import msglang.Value.*;
+
+/**
+ * An Evaluator that counts how often the body of each lambda and process
+ * runs, and once a body is hot has the BytecodeCompiler turn it into a JVM
+ * class. Until then, and whenever compilation fails, bodies are evaluated by
+ * the Evaluator as usual.
+ *
+ * @author hridesh
+ *
+ */
+public class JitEvaluator extends Evaluator {
+
+	/* Number of runs after which a body is compiled. */
+	static final int HOT_THRESHOLD = 1000;
+
+	private final BytecodeCompiler _compiler = new BytecodeCompiler(this);
+
+	public JitEvaluator(Reader reader) {
+		super(reader);
+	}
+
+	public JitEvaluator(Reader reader, Heap.Factory heaps) {
+		super(reader, heaps);
+	}
+
+	/**
+	 * Run count and compiled code of one lambda or process body.
+	 */
+	class Profile {
+		private final Exp _body;
+		private final AtomicInteger _runs = new AtomicInteger();
+		private volatile Code _code;
+		private volatile boolean _failed;
+
+		/* The profile of the same body for another evaluator, or null. */
+		private final Profile _next;
+
+		Profile(Exp body, Profile next) {
+			_body = body;
+			_next = next;
+		}
+
+		JitEvaluator evaluator() { return JitEvaluator.this; }
+
+		/* Returns the compiled body, compiling it if it just became hot. */
+		Code code() {
+			Code code = _code;
+			if(code != null || _failed)
+				return code;
+			if(_runs.incrementAndGet() == HOT_THRESHOLD) {
+				try {
+					_code = code = _compiler.compile(_body);
+				} catch (IllegalStateException e) {
+					_failed = true;
+				}
+			}
+			return code;
+		}
+	}
+
+	/* Profiles live on the LambdaExp or Clause they are for, one per
+	 * evaluator that runs it, so they are dropped with their program. They
+	 * are found without a lock; only adding one locks, and only its node. */
+	private Profile profile(LambdaExp e) {
+		Profile p = find(e.profile());
+		if(p == null)
+			synchronized(e) {
+				if((p = find(e.profile())) == null)
+					e.profile(p = new Profile(e.body(), (Profile) e.profile()));
+			}
+		return p;
+	}
+
+	private Profile profile(Clause c) {
+		Profile p = find(c.profile());
+		if(p == null)
+			synchronized(c) {
+				if((p = find(c.profile())) == null)
+					c.profile(p = new Profile(c.body(), (Profile) c.profile()));
+			}
+		return p;
+	}
+
+	/* This evaluator's profile among those in a node, or null. */
+	private Profile find(Object profiles) {
+		for(Profile p = (Profile) profiles; p != null; p = p._next)
+			if(p.evaluator() == this)
+				return p;
+		return null;
+	}
+
+	static class JitClosure extends FunVal {
+		private final Profile _profile;
+		JitClosure(Env env, List<String> formals, Exp body, Profile profile) {
+			super(env, formals, body);
+			_profile = profile;
+		}
+	}
+
+	static class JitActor extends ActorVal {
+		/* One per clause. */
+		private final Profile[] _profiles;
+		JitActor(Env env, ProcExp proc, Evaluator evaluator, Heap h, Profile[] profiles) {
+			super(env, proc, evaluator, h);
+			_profiles = profiles;
+		}
+		@Override
+		protected Value process(int clause, Env receive_env) {
+			Code code = _profiles[clause].code();
+			if(code != null)
+				return evaluator().complete(code.run(receive_env, heap()), heap());
+			return super.process(clause, receive_env);
+		}
+	}
+
+	@Override
+	public Value visit(LambdaExp e, Env env, Heap h) {
+		return new JitClosure(env, e.formals(), e.body(), profile(e));
+	}
+
+	@Override
+	public Value visit(ProcExp e, Env env, Heap h) {
+		List<Clause> clauses = e.clauses();
+		Profile[] profiles = new Profile[clauses.size()];
+		for(int i = 0; i < profiles.length; i++)
+			profiles[i] = profile(clauses.get(i));
+		return new JitActor(env, e, this, h, profiles);
+	}
+
+	@Override
+	Value compiled(FunVal f, Env fun_env, Heap h) {
+		if(f instanceof JitClosure) {
+			Code code = ((JitClosure) f)._profile.code();
+			if(code != null)
+				return code.run(fun_env, h);
+		}
+		return null;
+	}
+}
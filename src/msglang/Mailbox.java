@@ -0,0 +1,408 @@
+package msglang;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * The queue of messages sent to an actor and not yet processed.
+ *
+ * Any thread may offer messages, but only the turn of the actor that owns
+ * the mailbox polls them, so that implementations can be multi-producer,
+ * single-consumer queues; a Bounded mailbox that drops the oldest message
+ * is the one exception. Polls never block; an actor with an empty
+ * mailbox is simply not scheduled (see Value.ActorVal). Only a Bounded
+ * mailbox with the BLOCK policy makes senders wait.
+ *
+ * @author hridesh
+ *
+ */
+public interface Mailbox {
+
+	/**
+	 * Adds message at the end, and returns false if there is no room for it.
+	 */
+	boolean offer(List<Value> message);
+
+	/**
+	 * Removes and returns the oldest message, or returns null if there is
+	 * none. Only the owning actor calls this.
+	 */
+	List<Value> poll();
+
+	/**
+	 * Whether the mailbox has no message that a poll could return. A message
+	 * counts once the offer that adds it has returned.
+	 */
+	boolean isEmpty();
+
+	/**
+	 * The number of messages in the mailbox, as a gauge: it may be off by the
+	 * offers and polls that are under way.
+	 */
+	int depth();
+
+	/**
+	 * The messages in the mailbox, oldest first. Only for a heap that has
+	 * stopped every thread that offers or polls.
+	 */
+	List<List<Value>> messages();
+
+	public interface Factory {
+		Mailbox make();
+	}
+
+	/**
+	 * An unbounded lock-free queue that any number of threads may also poll.
+	 */
+	static class Concurrent implements Mailbox {
+		public static final Factory FACTORY = new Factory() {
+			public Mailbox make() { return new Concurrent(); }
+		};
+
+		private final ConcurrentLinkedQueue<List<Value>> _queue = new ConcurrentLinkedQueue<List<Value>>();
+		private final LongAdder _offered = new LongAdder();
+		private volatile long _polled = 0; // Written by the consumer only.
+
+		public boolean offer(List<Value> message) {
+			_queue.offer(message);
+			_offered.increment();
+			return true;
+		}
+		public List<Value> poll() {
+			List<Value> message = _queue.poll();
+			if(message != null)
+				_polled++;
+			return message;
+		}
+		public boolean isEmpty() { return _queue.isEmpty(); }
+		public int depth() { return (int) Math.max(0, _offered.sum() - _polled); }
+		public List<List<Value>> messages() { return new ArrayList<List<Value>>(_queue); }
+	}
+
+	/**
+	 * An unbounded linked deque guarded by one lock, as actors first had.
+	 * Every offer and poll takes the lock, so senders contend with each
+	 * other and with the actor; it is kept for comparison, and for runs that
+	 * want the simplest mailbox.
+	 */
+	static class Deque implements Mailbox {
+		public static final Factory FACTORY = new Factory() {
+			public Mailbox make() { return new Deque(); }
+		};
+
+		private final LinkedBlockingDeque<List<Value>> _queue = new LinkedBlockingDeque<List<Value>>();
+
+		public boolean offer(List<Value> message) { return _queue.offer(message); }
+		public List<Value> poll() { return _queue.poll(); }
+		public boolean isEmpty() { return _queue.isEmpty(); }
+		public int depth() { return _queue.size(); }
+		public List<List<Value>> messages() { return new ArrayList<List<Value>>(_queue); }
+	}
+
+	/**
+	 * An unbounded linked queue for one consumer. A sender appends its message
+	 * with a single atomic swap of the tail, and never retries; the consumer
+	 * takes messages from the head without any atomic operation.
+	 */
+	static class Mpsc implements Mailbox {
+		public static final Factory FACTORY = new Factory() {
+			public Mailbox make() { return new Mpsc(); }
+		};
+
+		private static final class Node {
+			List<Value> _message;
+			volatile Node _next = null;
+			Node(List<Value> message) { _message = message; }
+		}
+
+		private final AtomicReference<Node> _tail;
+		/* The last message polled, or a stub; its successor is the oldest message. */
+		private volatile Node _head;
+		private final LongAdder _offered = new LongAdder();
+		private volatile long _polled = 0; // Written by the consumer only.
+
+		public Mpsc() {
+			_head = new Node(null);
+			_tail = new AtomicReference<Node>(_head);
+		}
+
+		public boolean offer(List<Value> message) {
+			Node node = new Node(message);
+			_tail.getAndSet(node)._next = node;
+			_offered.increment();
+			return true;
+		}
+
+		public List<Value> poll() {
+			Node next = _head._next;
+			if(next == null) // Empty, or a sender is between its swap and its link.
+				return null;
+			List<Value> message = next._message;
+			next._message = null;
+			_head = next;
+			_polled++;
+			return message;
+		}
+
+		public boolean isEmpty() { return _head._next == null; }
+
+		public int depth() { return (int) Math.max(0, _offered.sum() - _polled); }
+
+		public List<List<Value>> messages() {
+			List<List<Value>> messages = new ArrayList<List<Value>>();
+			for(Node node = _head._next; node != null; node = node._next)
+				messages.add(node._message);
+			return messages;
+		}
+	}
+
+	/**
+	 * A bounded queue for one consumer in a ring of slots. Each slot has a
+	 * sequence number that says whose turn it is: the sender that claimed
+	 * position p by advancing the tail may fill the slot once its sequence is
+	 * p, and the consumer may empty it once it is p + 1. Offers fail when the
+	 * ring is full.
+	 */
+	static class Array implements Mailbox {
+		private final AtomicReferenceArray<List<Value>> _slots;
+		private final AtomicLongArray _sequences;
+		private final int _mask;
+		private final AtomicLong _tail = new AtomicLong();
+		private volatile long _head = 0; // Written by the consumer only.
+
+		/* A ring of at least capacity slots; capacity is rounded up to a power of two. */
+		public Array(int capacity) {
+			int size = 1;
+			while(size < capacity)
+				size <<= 1;
+			_slots = new AtomicReferenceArray<List<Value>>(size);
+			_sequences = new AtomicLongArray(size);
+			for(int i = 0; i < size; i++)
+				_sequences.set(i, i);
+			_mask = size - 1;
+		}
+
+		public static Factory factory(final int capacity) {
+			return new Factory() {
+				public Mailbox make() { return new Array(capacity); }
+			};
+		}
+
+		public int capacity() { return _mask + 1; }
+
+		public boolean offer(List<Value> message) {
+			while(true) {
+				long tail = _tail.get();
+				int slot = (int) tail & _mask;
+				long sequence = _sequences.get(slot);
+				if(sequence == tail) {
+					if(_tail.compareAndSet(tail, tail + 1)) {
+						_slots.lazySet(slot, message);
+						_sequences.set(slot, tail + 1);
+						return true;
+					}
+				} else if(sequence < tail) // The consumer has not emptied this slot yet.
+					return false;
+				// Otherwise another sender has claimed tail; try the next position.
+			}
+		}
+
+		public List<Value> poll() {
+			long head = _head;
+			int slot = (int) head & _mask;
+			if(_sequences.get(slot) != head + 1)
+				return null;
+			List<Value> message = _slots.get(slot);
+			_slots.lazySet(slot, null);
+			_sequences.set(slot, head + _mask + 1);
+			_head = head + 1;
+			return message;
+		}
+
+		public boolean isEmpty() {
+			long head = _head;
+			return _sequences.get((int) head & _mask) != head + 1;
+		}
+
+		public int depth() { return (int) Math.max(0, _tail.get() - _head); }
+
+		public List<List<Value>> messages() {
+			List<List<Value>> messages = new ArrayList<List<Value>>();
+			for(long position = _head; _sequences.get((int) position & _mask) == position + 1; position++)
+				messages.add(_slots.get((int) position & _mask));
+			return messages;
+		}
+	}
+
+	/**
+	 * What a Bounded mailbox does with a message that arrives when it is full.
+	 */
+	enum Policy {
+		/** The sender waits until there is room. */
+		BLOCK,
+		/** The new message is discarded. */
+		DROP_NEWEST,
+		/** The oldest message in the mailbox is discarded to make room. */
+		DROP_OLDEST,
+		/** The message is refused, and the send is a DynamicError. */
+		ERROR
+	}
+
+	/**
+	 * A mailbox that holds at most capacity messages, and applies its policy
+	 * to the rest. Senders that wait for room park, and each poll wakes one;
+	 * a worker of a fork/join pool that parks is replaced by a spare worker
+	 * meanwhile, so that the actor that would make room still gets to run.
+	 *
+	 * With DROP_OLDEST, a sender that finds the mailbox full removes the
+	 * oldest message itself, so that the mailbox never holds more than
+	 * capacity messages for long, even while the actor waits for its turn.
+	 * Unlike other mailboxes, this one is therefore polled by senders as
+	 * well as by its actor, and its queue must stay a multi-consumer one.
+	 */
+	static class Bounded implements Mailbox {
+		/* Multi-consumer: senders poll it too under DROP_OLDEST. */
+		private final ConcurrentLinkedQueue<List<Value>> _queue = new ConcurrentLinkedQueue<List<Value>>();
+		private final int _capacity;
+		private final Policy _policy;
+		/* Messages in the queue, and messages that senders are adding to it. */
+		private final AtomicInteger _depth = new AtomicInteger();
+		private final ConcurrentLinkedQueue<Thread> _waiters = new ConcurrentLinkedQueue<Thread>();
+		private volatile int _peak = 0;
+		private final AtomicLong _dropped = new AtomicLong();
+		private final AtomicLong _refused = new AtomicLong();
+
+		public Bounded(int capacity, Policy policy) {
+			_capacity = Math.max(1, capacity);
+			_policy = policy;
+		}
+
+		public static Factory factory(final int capacity, final Policy policy) {
+			return new Factory() {
+				public Mailbox make() { return new Bounded(capacity, policy); }
+			};
+		}
+
+		public int capacity() { return _capacity; }
+		public Policy policy() { return _policy; }
+		/* The highest depth this mailbox has had. */
+		public int peak() { return _peak; }
+		/* Messages discarded by the DROP_NEWEST and DROP_OLDEST policies. */
+		public long dropped() { return _dropped.get(); }
+		/* Messages refused by the ERROR policy, or by BLOCK when the sender
+		 * could not wait. */
+		public long refused() { return _refused.get(); }
+
+		public boolean offer(List<Value> message) {
+			return offer(message, true);
+		}
+
+		/* Like offer, but refuses the message rather than wait for room. An
+		 * actor sending to itself must not wait for its own turn to poll. */
+		public boolean tryOffer(List<Value> message) {
+			return offer(message, false);
+		}
+
+		private boolean offer(List<Value> message, boolean wait) {
+			if(_policy == Policy.DROP_OLDEST) {
+				int depth = _depth.incrementAndGet();
+				_queue.offer(message);
+				peak(depth);
+				while(depth > _capacity) {
+					List<Value> oldest = _queue.poll(); // As a sender, see the class comment.
+					if(oldest != null) {
+						depth = _depth.decrementAndGet();
+						drop(oldest);
+					} else // Another sender has counted its message but not added it yet.
+						depth = _depth.get();
+				}
+				return true;
+			}
+			while(!reserve()) {
+				if(_policy == Policy.DROP_NEWEST) {
+					drop(message);
+					return true;
+				}
+				if(_policy == Policy.ERROR || !wait) {
+					_refused.incrementAndGet();
+					return false;
+				}
+				await();
+			}
+			_queue.offer(message);
+			return true;
+		}
+
+		/* A dropped ask gets an error rather than no reply. */
+		private void drop(List<Value> message) {
+			_dropped.incrementAndGet();
+			Value.ActorVal.Request.fail(message, "Message dropped by a full mailbox");
+		}
+
+		/* Counts a message in if there is room for it. */
+		private boolean reserve() {
+			int depth;
+			do {
+				depth = _depth.get();
+				if(depth >= _capacity)
+					return false;
+			} while(!_depth.compareAndSet(depth, depth + 1));
+			peak(depth + 1);
+			return true;
+		}
+
+		private void peak(int depth) {
+			if(depth > _peak)
+				_peak = depth;
+		}
+
+		/* Parks until a poll makes room, or until there is room already. */
+		private void await() {
+			Thread sender = Thread.currentThread();
+			_waiters.offer(sender);
+			try {
+				ForkJoinPool.managedBlock(new ForkJoinPool.ManagedBlocker() {
+					public boolean block() {
+						if(!isReleasable())
+							LockSupport.park(Bounded.this);
+						return true;
+					}
+					public boolean isReleasable() {
+						return _depth.get() < _capacity;
+					}
+				});
+			} catch (InterruptedException e) {
+				sender.interrupt();
+			} finally {
+				_waiters.remove(sender);
+			}
+		}
+
+		public List<Value> poll() {
+			List<Value> message = _queue.poll();
+			if(message != null) {
+				_depth.decrementAndGet();
+				Thread waiter = _waiters.poll();
+				if(waiter != null)
+					LockSupport.unpark(waiter);
+			}
+			return message;
+		}
+
+		public boolean isEmpty() { return _queue.isEmpty(); }
+
+		public int depth() { return Math.min(_depth.get(), _capacity); }
+
+		public List<List<Value>> messages() { return new ArrayList<List<Value>>(_queue); }
+	}
+}
@@ -34,14 +34,30 @@ exp returns [Exp ast]:
         | send=sendexp { $ast = $send.ast; }
         | stp=stopexp { $ast = $stp.ast; }
         | self=selfexp { $ast = $self.ast; }
+        | ask=askexp { $ast = $ask.ast; }
+        | await=awaitexp { $ast = $await.ast; }
         ;
  
  procexp returns [ProcExp ast] 
-        locals [ArrayList<String> formals = new ArrayList<String>(); ] : 
+        locals [ArrayList<String> formals = new ArrayList<String>(), 
+                ArrayList<Clause> clauses = new ArrayList<Clause>() ] : 
  		'(' Process  
  			'(' ( id=Identifier { $formals.add($id.text); } )* ')' 
  			body=exp  
  		')'  { $ast = new ProcExp($formals, $body.ast); }
+ 		| '(' Process  
+ 			'(' Receive ( c=clause { $clauses.add($c.ast); } )+ ')' 
+ 		')'  { $ast = new ProcExp($clauses); }
+ 		;
+
+ clause returns [Clause ast] 
+        locals [ArrayList<String> formals = new ArrayList<String>(), Exp tag = null ] : 
+ 		'(' 
+ 			'(' ( num=numexp { $tag = $num.ast; } | str=strexp { $tag = $str.ast; } | bl=boolexp { $tag = $bl.ast; } )? 
+ 				( id=Identifier { $formals.add($id.text); } )* 
+ 			')' 
+ 			body=exp 
+ 		')' { $ast = new Clause($tag, $formals, $body.ast); }
  		;
 
  sendexp returns [SendExp ast] 
@@ -61,3 +77,25 @@ exp returns [Exp ast]:
  		'(' Self 
  		')' { $ast = new SelfExp(); }
  		;
+
+ askexp returns [AskExp ast] 
+ 		locals [ArrayList<Exp> actuals = new ArrayList<Exp>(); ] : 
+ 		'(' Ask 
+ 			receiver=exp 
+ 			( argument=exp { $actuals.add($argument.ast); } )*  
+ 		')' { $ast = new AskExp($receiver.ast, $actuals); }
+ 		;
+
+ awaitexp returns [AwaitExp ast] : 
+ 		'(' Await 
+ 			future=exp 
+ 		')' { $ast = new AwaitExp($future.ast, null); }
+ 		| '(' Await 
+ 			future=exp 
+ 			timeout=exp 
+ 		')' { $ast = new AwaitExp($future.ast, $timeout.ast); }
+ 		;
+
+ Ask : 'ask' ;
+ Await : 'await' ;
+ Receive : 'receive' ;
@@ -0,0 +1,454 @@
+package msglang;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import msglang.AST.*;
+
+/**
+ * Reads and writes programs in the .msgc format: a parsed AST.Program in a
+ * compact binary form, which loads without the ANTLR lexer and parser.
+ *
+ * A .msgc file is the magic number and version followed by the program's
+ * nodes in prefix order. Each node is a one byte tag followed by its fields.
+ * Counts and string indices are varints; each string is written out once,
+ * as its length and UTF-8 bytes, the first time it is used, and by its
+ * index after that.
+ *
+ * Usage: java msglang.Msgc file.scm ...         writes file.msgc next to each
+ *        java msglang.Msgc -time file.(scm|msgc) loads one file and prints how
+ *                                               long it took since the JVM started
+ *
+ * @author hridesh
+ *
+ */
+public class Msgc {
+	public static final String EXTENSION = ".msgc";
+	static final int MAGIC = 0x4d534743; // "MSGC"
+	static final int VERSION = 1;
+
+	static final byte PROGRAM = 0, DEFINE = 1, UNIT = 2, NUM = 3, STR = 4, BOOL = 5,
+			VAR = 6, ADD = 7, SUB = 8, MULT = 9, DIV = 10, LET = 11, LAMBDA = 12,
+			CALL = 13, IF = 14, LESS = 15, EQUAL = 16, GREATER = 17, CAR = 18,
+			CDR = 19, CONS = 20, LIST = 21, NULL = 22, IS_NULL = 23, IS_PROCEDURE = 24,
+			IS_LIST = 25, IS_PAIR = 26, IS_UNIT = 27, IS_NUMBER = 28, IS_STRING = 29,
+			IS_BOOLEAN = 30, READ = 31, EVAL = 32, REQUIRE = 33, LETREC = 34, REF = 35,
+			DEREF = 36, ASSIGN = 37, FREE = 38, FORK = 39, LOCK = 40, UNLOCK = 41,
+			PROC = 42, SEND = 43, STOP = 44, SELF = 45, ERROR = 46,
+			ASK = 47, AWAIT = 48, RECEIVE = 49;
+
+	public static byte[] write(Program p) {
+		Encoder encoder = new Encoder();
+		p.accept(encoder, null, null);
+		return encoder.bytes();
+	}
+
+	public static void write(Program p, String fileName) throws IOException {
+		try (FileOutputStream out = new FileOutputStream(fileName)) {
+			out.write(write(p));
+		}
+	}
+
+	public static Program read(String fileName) throws IOException {
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(fileName)))) {
+			return new Decoder(in).program();
+		}
+	}
+
+	/* The .msgc file that fileName compiles to. */
+	public static String target(String fileName) {
+		int dot = fileName.lastIndexOf('.');
+		if(dot > fileName.lastIndexOf(java.io.File.separatorChar))
+			fileName = fileName.substring(0, dot);
+		return fileName + EXTENSION;
+	}
+
+	static class Encoder implements AST.Visitor<Object> {
+		private final ByteArrayOutputStream _bytes = new ByteArrayOutputStream();
+		private final DataOutputStream _out = new DataOutputStream(_bytes);
+		private final Map<String, Integer> _strings = new HashMap<String, Integer>();
+
+		Encoder() {
+			try {
+				_out.writeInt(MAGIC);
+				_out.writeByte(VERSION);
+			} catch (IOException e) { throw new IllegalStateException(e); }
+		}
+
+		byte[] bytes() { return _bytes.toByteArray(); }
+
+		private void tag(byte tag) { _bytes.write(tag); }
+
+		private void count(int n) {
+			while((n & ~0x7f) != 0) {
+				_bytes.write((n & 0x7f) | 0x80);
+				n >>>= 7;
+			}
+			_bytes.write(n);
+		}
+
+		private void string(String s) {
+			Integer index = _strings.get(s);
+			if(index != null) {
+				count(index);
+				return;
+			}
+			count(_strings.size());
+			_strings.put(s, _strings.size());
+			byte[] utf8 = s.getBytes(StandardCharsets.UTF_8);
+			count(utf8.length);
+			_bytes.write(utf8, 0, utf8.length);
+		}
+
+		private void strings(List<String> ss) {
+			count(ss.size());
+			for(String s : ss)
+				string(s);
+		}
+
+		private void exp(Exp e) { e.accept(this, null, null); }
+
+		private void exps(List<Exp> es) {
+			count(es.size());
+			for(Exp e : es)
+				exp(e);
+		}
+
+		private Object node(byte tag, Exp e) {
+			tag(tag);
+			exp(e);
+			return null;
+		}
+
+		private Object node(byte tag, Exp fst, Exp snd) {
+			tag(tag);
+			exp(fst);
+			exp(snd);
+			return null;
+		}
+
+		private Object node(byte tag, List<Exp> es) {
+			tag(tag);
+			exps(es);
+			return null;
+		}
+
+		public Object visit(Program p, Env env, Heap h) {
+			tag(PROGRAM);
+			count(p.decls().size());
+			for(DefineDecl d : p.decls())
+				d.accept(this, env, h);
+			exp(p.e());
+			return null;
+		}
+
+		public Object visit(DefineDecl d, Env env, Heap h) {
+			tag(DEFINE);
+			string(d.name());
+			exp(d.value_exp());
+			return null;
+		}
+
+		public Object visit(UnitExp e, Env env, Heap h) { tag(UNIT); return null; }
+
+		public Object visit(NumExp e, Env env, Heap h) {
+			tag(NUM);
+			try {
+				_out.writeDouble(e.v());
+			} catch (IOException ex) { throw new IllegalStateException(ex); }
+			return null;
+		}
+
+		public Object visit(StrExp e, Env env, Heap h) {
+			tag(STR);
+			string(e.v());
+			return null;
+		}
+
+		public Object visit(BoolExp e, Env env, Heap h) {
+			tag(BOOL);
+			_bytes.write(e.v() ? 1 : 0);
+			return null;
+		}
+
+		public Object visit(VarExp e, Env env, Heap h) {
+			tag(VAR);
+			string(e.name());
+			return null;
+		}
+
+		public Object visit(AddExp e, Env env, Heap h) { return node(ADD, e.all()); }
+		public Object visit(SubExp e, Env env, Heap h) { return node(SUB, e.all()); }
+		public Object visit(MultExp e, Env env, Heap h) { return node(MULT, e.all()); }
+		public Object visit(DivExp e, Env env, Heap h) { return node(DIV, e.all()); }
+
+		public Object visit(LetExp e, Env env, Heap h) {
+			tag(LET);
+			strings(e.names());
+			exps(e.value_exps());
+			exp(e.body());
+			return null;
+		}
+
+		public Object visit(LetrecExp e, Env env, Heap h) {
+			tag(LETREC);
+			strings(e.names());
+			exps(e.fun_exps());
+			exp(e.body());
+			return null;
+		}
+
+		public Object visit(LambdaExp e, Env env, Heap h) {
+			tag(LAMBDA);
+			strings(e.formals());
+			exp(e.body());
+			return null;
+		}
+
+		public Object visit(ProcExp e, Env env, Heap h) {
+			if(e.isReceive()) {
+				tag(RECEIVE);
+				count(e.clauses().size());
+				for(Clause c : e.clauses()) {
+					exps(c.tag() == null ? Collections.<Exp>emptyList() : Arrays.asList(c.tag()));
+					strings(c.formals());
+					exp(c.body());
+				}
+				return null;
+			}
+			tag(PROC);
+			strings(e.formals());
+			exp(e.body());
+			return null;
+		}
+
+		public Object visit(CallExp e, Env env, Heap h) {
+			tag(CALL);
+			exp(e.operator());
+			exps(e.operands());
+			return null;
+		}
+
+		public Object visit(SendExp e, Env env, Heap h) {
+			tag(SEND);
+			exp(e.operator());
+			exps(e.operands());
+			return null;
+		}
+
+		public Object visit(AskExp e, Env env, Heap h) {
+			tag(ASK);
+			exp(e.operator());
+			exps(e.operands());
+			return null;
+		}
+
+		public Object visit(AwaitExp e, Env env, Heap h) {
+			if(e.timeout() == null)
+				return node(AWAIT, Arrays.asList(e.future()));
+			return node(AWAIT, Arrays.asList(e.future(), e.timeout()));
+		}
+
+		public Object visit(IfExp e, Env env, Heap h) {
+			tag(IF);
+			exp(e.conditional());
+			exp(e.then_exp());
+			exp(e.else_exp());
+			return null;
+		}
+
+		public Object visit(LessExp e, Env env, Heap h) { return node(LESS, e.first_exp(), e.second_exp()); }
+		public Object visit(EqualExp e, Env env, Heap h) { return node(EQUAL, e.first_exp(), e.second_exp()); }
+		public Object visit(GreaterExp e, Env env, Heap h) { return node(GREATER, e.first_exp(), e.second_exp()); }
+		public Object visit(CarExp e, Env env, Heap h) { return node(CAR, e.arg()); }
+		public Object visit(CdrExp e, Env env, Heap h) { return node(CDR, e.arg()); }
+		public Object visit(ConsExp e, Env env, Heap h) { return node(CONS, e.fst(), e.snd()); }
+		public Object visit(ListExp e, Env env, Heap h) { return node(LIST, e.elems()); }
+		public Object visit(NullExp e, Env env, Heap h) { return node(NULL, e.arg()); }
+		public Object visit(IsNullExp e, Env env, Heap h) { return node(IS_NULL, e.exp()); }
+		public Object visit(IsProcedureExp e, Env env, Heap h) { return node(IS_PROCEDURE, e.exp()); }
+		public Object visit(IsListExp e, Env env, Heap h) { return node(IS_LIST, e.exp()); }
+		public Object visit(IsPairExp e, Env env, Heap h) { return node(IS_PAIR, e.exp()); }
+		public Object visit(IsUnitExp e, Env env, Heap h) { return node(IS_UNIT, e.exp()); }
+		public Object visit(IsNumberExp e, Env env, Heap h) { return node(IS_NUMBER, e.exp()); }
+		public Object visit(IsStringExp e, Env env, Heap h) { return node(IS_STRING, e.exp()); }
+		public Object visit(IsBooleanExp e, Env env, Heap h) { return node(IS_BOOLEAN, e.exp()); }
+		public Object visit(ReadExp e, Env env, Heap h) { return node(READ, e.file()); }
+		public Object visit(EvalExp e, Env env, Heap h) { return node(EVAL, e.code()); }
+		public Object visit(RequireExp e, Env env, Heap h) { return node(REQUIRE, e.file()); }
+		public Object visit(RefExp e, Env env, Heap h) { return node(REF, e.value_exp()); }
+		public Object visit(DerefExp e, Env env, Heap h) { return node(DEREF, e.loc_exp()); }
+		public Object visit(AssignExp e, Env env, Heap h) { return node(ASSIGN, e.lhs_exp(), e.rhs_exp()); }
+		public Object visit(FreeExp e, Env env, Heap h) { return node(FREE, e.value_exp()); }
+		public Object visit(ForkExp e, Env env, Heap h) { return node(FORK, e.fst_exp(), e.snd_exp()); }
+		public Object visit(LockExp e, Env env, Heap h) { return node(LOCK, e.value_exp()); }
+		public Object visit(UnlockExp e, Env env, Heap h) { return node(UNLOCK, e.value_exp()); }
+		public Object visit(StopExp e, Env env, Heap h) { tag(STOP); return null; }
+		public Object visit(SelfExp e, Env env, Heap h) { tag(SELF); return null; }
+		public Object visit(ErrorExp e, Env env, Heap h) { tag(ERROR); return null; }
+	}
+
+	static class Decoder {
+		private final DataInputStream _in;
+		private final List<String> _strings = new ArrayList<String>();
+
+		Decoder(DataInputStream in) throws IOException {
+			_in = in;
+			if(in.readInt() != MAGIC)
+				throw new IOException("Not a .msgc file");
+			int version = in.readUnsignedByte();
+			if(version != VERSION)
+				throw new IOException("Unsupported .msgc version " + version);
+		}
+
+		Program program() throws IOException {
+			if(_in.readByte() != PROGRAM)
+				throw new IOException("Malformed .msgc file: no program");
+			int n = count();
+			List<DefineDecl> decls = new ArrayList<DefineDecl>(n);
+			for(int i = 0; i < n; i++)
+				decls.add((DefineDecl) exp());
+			return new Program(decls, exp());
+		}
+
+		private int count() throws IOException {
+			int n = 0, shift = 0, b;
+			do {
+				b = _in.readUnsignedByte();
+				n |= (b & 0x7f) << shift;
+				shift += 7;
+			} while((b & 0x80) != 0);
+			return n;
+		}
+
+		private String string() throws IOException {
+			int index = count();
+			if(index < _strings.size())
+				return _strings.get(index);
+			if(index > _strings.size())
+				throw new IOException("Malformed .msgc file: string " + index);
+			byte[] utf8 = new byte[count()];
+			_in.readFully(utf8);
+			String s = new String(utf8, StandardCharsets.UTF_8);
+			_strings.add(s);
+			return s;
+		}
+
+		private List<String> strings() throws IOException {
+			int n = count();
+			List<String> ss = new ArrayList<String>(n);
+			for(int i = 0; i < n; i++)
+				ss.add(string());
+			return ss;
+		}
+
+		private List<Exp> exps() throws IOException {
+			int n = count();
+			List<Exp> es = new ArrayList<Exp>(n);
+			for(int i = 0; i < n; i++)
+				es.add(exp());
+			return es;
+		}
+
+		private Exp exp() throws IOException {
+			byte tag = _in.readByte();
+			switch(tag) {
+			case DEFINE: { String name = string(); return new DefineDecl(name, exp()); }
+			case UNIT: return new UnitExp();
+			case NUM: return new NumExp(_in.readDouble());
+			case STR: return new StrExp(string());
+			case BOOL: return new BoolExp(_in.readByte() != 0);
+			case VAR: return new VarExp(string());
+			case ADD: return new AddExp(exps());
+			case SUB: return new SubExp(exps());
+			case MULT: return new MultExp(exps());
+			case DIV: return new DivExp(exps());
+			case LET: { List<String> names = strings(); List<Exp> values = exps(); return new LetExp(names, values, exp()); }
+			case LETREC: { List<String> names = strings(); List<Exp> funs = exps(); return new LetrecExp(names, funs, exp()); }
+			case LAMBDA: { List<String> formals = strings(); return new LambdaExp(formals, exp()); }
+			case PROC: { List<String> formals = strings(); return new ProcExp(formals, exp()); }
+			case RECEIVE: {
+				int n = count();
+				List<Clause> clauses = new ArrayList<Clause>(n);
+				for(int i = 0; i < n; i++) {
+					List<Exp> tags = exps();
+					List<String> formals = strings();
+					clauses.add(new Clause(tags.isEmpty() ? null : tags.get(0), formals, exp()));
+				}
+				return new ProcExp(clauses);
+			}
+			case CALL: { Exp operator = exp(); return new CallExp(operator, exps()); }
+			case SEND: { Exp receiver = exp(); return new SendExp(receiver, exps()); }
+			case ASK: { Exp receiver = exp(); return new AskExp(receiver, exps()); }
+			case AWAIT: { List<Exp> es = exps(); return new AwaitExp(es.get(0), es.size() > 1 ? es.get(1) : null); }
+			case IF: { Exp c = exp(); Exp t = exp(); return new IfExp(c, t, exp()); }
+			case LESS: { Exp fst = exp(); return new LessExp(fst, exp()); }
+			case EQUAL: { Exp fst = exp(); return new EqualExp(fst, exp()); }
+			case GREATER: { Exp fst = exp(); return new GreaterExp(fst, exp()); }
+			case CAR: return new CarExp(exp());
+			case CDR: return new CdrExp(exp());
+			case CONS: { Exp fst = exp(); return new ConsExp(fst, exp()); }
+			case LIST: return new ListExp(exps());
+			case NULL: return new NullExp(exp());
+			case IS_NULL: return new IsNullExp(exp());
+			case IS_PROCEDURE: return new IsProcedureExp(exp());
+			case IS_LIST: return new IsListExp(exp());
+			case IS_PAIR: return new IsPairExp(exp());
+			case IS_UNIT: return new IsUnitExp(exp());
+			case IS_NUMBER: return new IsNumberExp(exp());
+			case IS_STRING: return new IsStringExp(exp());
+			case IS_BOOLEAN: return new IsBooleanExp(exp());
+			case READ: return new ReadExp(exp());
+			case EVAL: return new EvalExp(exp());
+			case REQUIRE: return new RequireExp(exp());
+			case REF: return new RefExp(exp());
+			case DEREF: return new DerefExp(exp());
+			case ASSIGN: { Exp lhs = exp(); return new AssignExp(lhs, exp()); }
+			case FREE: return new FreeExp(exp());
+			case FORK: { Exp fst = exp(); return new ForkExp(fst, exp()); }
+			case LOCK: return new LockExp(exp());
+			case UNLOCK: return new UnlockExp(exp());
+			case STOP: return new StopExp();
+			case SELF: return new SelfExp();
+			case ERROR: return new ErrorExp();
+			default: throw new IOException("Malformed .msgc file: tag " + tag);
+			}
+		}
+	}
+
+	public static void main(String[] args) throws IOException {
+		if(args.length == 2 && args[0].equals("-time")) {
+			long start = java.lang.management.ManagementFactory.getRuntimeMXBean().getStartTime();
+			long before = System.nanoTime();
+			Reader reader = new Reader();
+			Program p = args[1].endsWith(EXTENSION) ? read(args[1]) : reader.parse(Reader.readFile(args[1]));
+			long load = (System.nanoTime() - before) / 1000000;
+			System.out.println(args[1] + ": " + p.decls().size() + " definitions loaded in " + load
+					+ "ms, " + (System.currentTimeMillis() - start) + "ms since JVM start");
+			return;
+		}
+		Reader reader = new Reader();
+		for(String fileName : args) {
+			Program p = reader.parse(Reader.readFile(fileName));
+			if(p == null) {
+				System.err.println(fileName + ": syntax error");
+				continue;
+			}
+			String target = target(fileName);
+			write(p, target);
+			System.out.println(fileName + " -> " + target);
+		}
+	}
+}
@@ -0,0 +1,124 @@
+package msglang;
+
+import java.io.File;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import msglang.AST.Program;
+
+/**
+ * A bounded cache of the programs the Reader has parsed, so that require
+ * and run of an unchanged file, and eval of the same text again, as in the
+ * loop of an actor, do not lex and parse it again.
+ *
+ * Programs from files are keyed by the path, modification time and length
+ * of their file, so an edited file is parsed afresh. Programs parsed from
+ * text, such as eval strings and prompt lines, are keyed by the hash of the
+ * text, and a hit only counts if the text is equal as well. Each of the two
+ * holds programs from at most its capacity in characters of source, and
+ * drops the least recently used program to make room; a source larger than
+ * that is not cached at all.
+ *
+ * @author hridesh
+ *
+ */
+public class ParseCache {
+	static final long DEFAULT_CAPACITY = 4L << 20; // Characters of source.
+	static final long DEFAULT_TEXT_CAPACITY = 1L << 20;
+
+	private static class Entry {
+		final Program program;
+		final long size;
+		final String text; // The text parsed, or null for a file.
+		Entry(Program program, long size, String text) {
+			this.program = program;
+			this.size = size;
+			this.text = text;
+		}
+	}
+
+	private final long _capacity, _text_capacity;
+	private final LinkedHashMap<String, Entry> _programs = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+	private final LinkedHashMap<Integer, Entry> _texts = new LinkedHashMap<Integer, Entry>(16, 0.75f, true);
+	private long _size = 0, _text_size = 0;
+	private long _hits = 0, _misses = 0;
+
+	public ParseCache() {
+		this(DEFAULT_CAPACITY, DEFAULT_TEXT_CAPACITY);
+	}
+
+	public ParseCache(long capacity, long text_capacity) {
+		_capacity = capacity;
+		_text_capacity = text_capacity;
+	}
+
+	/* The key of the current contents of the file at path. */
+	static String fileKey(String path) {
+		File file = new File(path);
+		return path + ":" + file.lastModified() + ":" + file.length();
+	}
+
+	/* Returns the program parsed from the file with this key, or null. */
+	public synchronized Program program(String key) {
+		Entry entry = _programs.get(key);
+		if(entry == null) {
+			_misses++;
+			return null;
+		}
+		_hits++;
+		return entry.program;
+	}
+
+	/* Caches program, parsed from size characters of source. */
+	public synchronized void putProgram(String key, Program program, long size) {
+		if(size > _capacity)
+			return;
+		_size = put(_programs, key, new Entry(program, size, null), _size, _capacity);
+	}
+
+	/* Returns the program parsed from text, or null. */
+	public synchronized Program textProgram(String text) {
+		Entry entry = _texts.get(text.hashCode());
+		if(entry == null || !entry.text.equals(text)) {
+			_misses++;
+			return null;
+		}
+		_hits++;
+		return entry.program;
+	}
+
+	/* Caches program, parsed from text; it replaces any program from
+	 * another text with the same hash. */
+	public synchronized void putTextProgram(String text, Program program) {
+		if(text.length() > _text_capacity)
+			return;
+		_text_size = put(_texts, text.hashCode(), new Entry(program, text.length(), text), _text_size, _text_capacity);
+	}
+
+	/* Puts entry in programs, which hold size characters, then drops the
+	 * least recently used until they fit in capacity; returns their size. */
+	private static <K> long put(LinkedHashMap<K, Entry> programs, K key, Entry entry, long size, long capacity) {
+		Entry old = programs.put(key, entry);
+		if(old != null)
+			size -= old.size;
+		size += entry.size;
+		Iterator<Map.Entry<K, Entry>> eldest = programs.entrySet().iterator();
+		while(size > capacity) {
+			size -= eldest.next().getValue().size;
+			eldest.remove();
+		}
+		return size;
+	}
+
+	public synchronized long hits() { return _hits; }
+	public synchronized long misses() { return _misses; }
+	/* Characters of source that the cached programs were parsed from. */
+	public synchronized long size() { return _size + _text_size; }
+
+	public synchronized String toString() {
+		return "parse cache: " + _hits + " hits, " + _misses + " misses; " + _programs.size()
+				+ " programs from " + _size + " characters of files, " + _texts.size() + " from "
+				+ _text_size + " characters of text";
+	}
+}
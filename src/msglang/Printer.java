@@ -58,6 +58,10 @@ public class Printer {
 			return "(eval " + e.code().accept(this, env, h) + ")";
 		}
 
+		public String visit(AST.RequireExp e, Env env, Heap h) {
+			return "(require " + e.file().accept(this, env, h) + ")";
+		}
+
 		public String visit(AST.MultExp e, Env env, Heap h) {
 			String result = "(* ";
 			for(AST.Exp exp : e.all()) 
@@ -300,6 +304,18 @@ public class Printer {
 
 		@Override
 		public String visit(ProcExp e, Env env, Heap h) {
+			if(e.isReceive()) {
+				String result = "(actor (receive ";
+				for(Clause c : e.clauses()) {
+					result += "(( ";
+					if(c.tag() != null)
+						result += c.tag().accept(this, env, h) + " ";
+					for(String formal : c.formals())
+						result += formal + " ";
+					result += ") " + c.body().accept(this, env, h) + ") ";
+				}
+				return result + "))";
+			}
 			String result = "(actor ( ";
 			for(String formal : e.formals()) 
 				result += formal + " ";
@@ -317,6 +333,23 @@ public class Printer {
 			return result + ")";
 		}
 
+		@Override
+		public String visit(AskExp e, Env env, Heap h) {
+			String result = "(ask ";
+			result += e.operator().accept(this, env, h) + " ";
+			for(AST.Exp exp : e.operands())
+				result += exp.accept(this, env, h) + " ";
+			return result + ")";
+		}
+
+		@Override
+		public String visit(AwaitExp e, Env env, Heap h) {
+			String result = "(await " + e.future().accept(this, env, h);
+			if(e.timeout() != null)
+				result += " " + e.timeout().accept(this, env, h);
+			return result + ")";
+		}
+
 		@Override
 		public String visit(SelfExp e, Env env, Heap h) {
 			return "(self)";
@@ -4,8 +4,11 @@ import java.io.BufferedReader;
 import java.io.File;
 import java.io.InputStreamReader;
 import java.io.IOException;
-import java.io.FileReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
 
+import org.antlr.v4.runtime.CharStream;
 import org.antlr.v4.runtime.Lexer;
 import msglang.parser.*;
 import msglang.AST.*;
@@ -13,18 +16,63 @@ import msglang.AST.*;
 public class Reader {
 	
 	public Program read() throws IOException {
-		String programText = readNextProgram(getProgramDirectory());
+		String programText = readNextProgram();
+		if(programText.startsWith("run "))
+			return load(getProgramDirectory() + programText.substring(4));
 		return parse(programText);
 	}
 	
+	private final ParseCache _cache = new ParseCache();
+
+	public ParseCache cache() { return _cache; }
+
+	/* Parses programText, unless the same text has been parsed lately. */
 	public Program parse(String programText) {
-		Lexer l = getLexer(new org.antlr.v4.runtime.ANTLRInputStream(programText));
+		Program program = _cache.textProgram(programText);
+		if(program == null) {
+			program = parse(new TextStream(programText));
+			if(program != null)
+				_cache.putTextProgram(programText, program);
+		}
+		return program;
+	}
+
+	/* Loads the program in a source file, from the .msgc file compiled from
+	 * it if that is at least as new, or the .msgc file itself. A source file
+	 * that has not changed since it was last parsed is not parsed again. */
+	public Program load(String fileName) throws IOException {
+		if(fileName.endsWith(Msgc.EXTENSION))
+			return resolve(Msgc.read(fileName));
+		File compiled = new File(Msgc.target(fileName));
+		if(compiled.exists() && compiled.lastModified() >= new File(fileName).lastModified())
+			return resolve(Msgc.read(compiled.getPath()));
+		String key = ParseCache.fileKey(fileName);
+		Program program = _cache.program(key);
+		if(program == null) {
+			TextStream text = TextStream.open(fileName);
+			program = parse(text);
+			if(program != null)
+				_cache.putProgram(key, program, text.size());
+		}
+		return program;
+	}
+
+	/* Parses the text in s, which the lexer reads in place. */
+	private Program parse(CharStream s) {
+		Lexer l = getLexer(s);
 		MsgLangParser p = getParser(new org.antlr.v4.runtime.CommonTokenStream(l));
 		Program program = p.program().ast;
-		return program;
+		return resolve(program);
+	}
+
+	/* Every program is resolved once, here, before any evaluator sees it:
+	 * programs are shared through the cache, and evaluators on other
+	 * threads read the addresses without synchronization. */
+	private static Program resolve(Program program) {
+		return program == null ? null : new Resolver().resolve(program);
 	}
 	
-	protected Lexer getLexer(org.antlr.v4.runtime.ANTLRInputStream s) {
+	protected Lexer getLexer(CharStream s) {
 		return new MsgLangLexer(s);
 	}
 	
@@ -35,32 +83,13 @@ public class Reader {
 	protected String getProgramDirectory() { return "build"+File.separator+"msglang"+File.separator+"examples"+File.separator; }
 	
 	public static String readFile(String fileName) throws IOException {
-		try (BufferedReader br = new BufferedReader(
-				new FileReader(fileName))) {
-			StringBuilder sb = new StringBuilder();
-			String line = br.readLine();
-
-			while (line != null) {
-				sb.append(line);
-				sb.append(System.lineSeparator());
-				line = br.readLine();
-			}
-			return sb.toString();
-		}
+		return new String(Files.readAllBytes(Paths.get(fileName)), StandardCharsets.UTF_8);
 	}
-	
-	public static String runFile(String programText, String programDirectory) throws IOException {
-		if(programText.startsWith("run ")){
-			programText = readFile(programDirectory + programText.substring(4));
-		}
-		return programText; 
-	}	
-	
-	public static String readNextProgram(String programPath) throws IOException {
+
+	private static String readNextProgram() throws IOException {
 		BufferedReader br = new BufferedReader(new InputStreamReader(System.in));
 		System.out.print("$ ");
-		String programText = br.readLine();
-		return runFile(programText, programPath);
+		return br.readLine();
 	}
 
 }
\ No newline at end of file
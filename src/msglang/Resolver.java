@@ -0,0 +1,203 @@
+package msglang;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import msglang.AST.*;
+
+/**
+ * Computes the lexical address of every variable reference in a program.
+ *
+ * Each binding construct that the Evaluator turns into an Env.FrameEnv (let,
+ * letrec, the formals of a lambda and the formals of a process) opens a scope
+ * here. A variable found in a scope is annotated with the number of frames to
+ * skip and its position in the frame it lands on; variables bound by define
+ * (or not bound at all) are left free and looked up in the Env.GlobalEnv.
+ *
+ * @author hridesh
+ *
+ */
+public class Resolver implements AST.Visitor<Object> {
+
+	private static class Scope {
+		final List<String> names;
+		final Scope outer;
+		Scope(List<String> names, Scope outer) {
+			this.names = names;
+			this.outer = outer;
+		}
+	}
+
+	private Scope _scope = null;
+
+	public Program resolve(Program p) {
+		p.accept(this, null, null);
+		return p;
+	}
+
+	public Exp resolve(Exp e) {
+		e.accept(this, null, null);
+		return e;
+	}
+
+	private void resolveIn(List<String> names, Exp e) {
+		Scope saved = _scope;
+		_scope = new Scope(names, saved);
+		e.accept(this, null, null);
+		_scope = saved;
+	}
+
+	private void resolveAll(List<Exp> exps) {
+		for(Exp exp : exps)
+			exp.accept(this, null, null);
+	}
+
+	public Object visit(VarExp e, Env env, Heap h) {
+		int depth = 0;
+		for(Scope s = _scope; s != null; s = s.outer, depth++) {
+			int index = s.names.lastIndexOf(e.name());
+			if(index >= 0) {
+				e.setAddress(depth, index);
+				return null;
+			}
+		}
+		e.setAddress(-1, -1);
+		return null;
+	}
+
+	public Object visit(Program p, Env env, Heap h) {
+		Scope saved = _scope;
+		_scope = null; // Programs are always evaluated at the top level.
+		for(DefineDecl d : p.decls())
+			d.accept(this, null, null);
+		if(p.e() != null)
+			p.e().accept(this, null, null);
+		_scope = saved;
+		return null;
+	}
+
+	public Object visit(DefineDecl d, Env env, Heap h) {
+		return d.value_exp().accept(this, null, null);
+	}
+
+	public Object visit(LetExp e, Env env, Heap h) {
+		resolveAll(e.value_exps());
+		resolveIn(e.names(), e.body());
+		return null;
+	}
+
+	public Object visit(LetrecExp e, Env env, Heap h) {
+		Scope saved = _scope;
+		_scope = new Scope(e.names(), saved);
+		resolveAll(e.fun_exps());
+		e.body().accept(this, null, null);
+		_scope = saved;
+		return null;
+	}
+
+	public Object visit(LambdaExp e, Env env, Heap h) {
+		resolveIn(e.formals(), e.body());
+		return null;
+	}
+
+	public Object visit(ProcExp e, Env env, Heap h) {
+		for(Clause c : e.clauses())
+			resolveIn(c.receive_names(), c.body());
+		return null;
+	}
+
+	public Object visit(CallExp e, Env env, Heap h) {
+		e.operator().accept(this, null, null);
+		resolveAll(e.operands());
+		return null;
+	}
+
+	public Object visit(SendExp e, Env env, Heap h) {
+		e.operator().accept(this, null, null);
+		resolveAll(e.operands());
+		return null;
+	}
+
+	public Object visit(AskExp e, Env env, Heap h) {
+		e.operator().accept(this, null, null);
+		resolveAll(e.operands());
+		return null;
+	}
+
+	public Object visit(AwaitExp e, Env env, Heap h) {
+		e.future().accept(this, null, null);
+		if(e.timeout() != null)
+			e.timeout().accept(this, null, null);
+		return null;
+	}
+
+	public Object visit(AddExp e, Env env, Heap h) { resolveAll(e.all()); return null; }
+	public Object visit(SubExp e, Env env, Heap h) { resolveAll(e.all()); return null; }
+	public Object visit(MultExp e, Env env, Heap h) { resolveAll(e.all()); return null; }
+	public Object visit(DivExp e, Env env, Heap h) { resolveAll(e.all()); return null; }
+	public Object visit(ListExp e, Env env, Heap h) { resolveAll(e.elems()); return null; }
+
+	public Object visit(IfExp e, Env env, Heap h) {
+		e.conditional().accept(this, null, null);
+		e.then_exp().accept(this, null, null);
+		return e.else_exp().accept(this, null, null);
+	}
+
+	public Object visit(LessExp e, Env env, Heap h) {
+		e.first_exp().accept(this, null, null);
+		return e.second_exp().accept(this, null, null);
+	}
+
+	public Object visit(EqualExp e, Env env, Heap h) {
+		e.first_exp().accept(this, null, null);
+		return e.second_exp().accept(this, null, null);
+	}
+
+	public Object visit(GreaterExp e, Env env, Heap h) {
+		e.first_exp().accept(this, null, null);
+		return e.second_exp().accept(this, null, null);
+	}
+
+	public Object visit(ConsExp e, Env env, Heap h) {
+		e.fst().accept(this, null, null);
+		return e.snd().accept(this, null, null);
+	}
+
+	public Object visit(AssignExp e, Env env, Heap h) {
+		e.lhs_exp().accept(this, null, null);
+		return e.rhs_exp().accept(this, null, null);
+	}
+
+	public Object visit(ForkExp e, Env env, Heap h) {
+		e.fst_exp().accept(this, null, null);
+		return e.snd_exp().accept(this, null, null);
+	}
+
+	public Object visit(CarExp e, Env env, Heap h) { return e.arg().accept(this, null, null); }
+	public Object visit(CdrExp e, Env env, Heap h) { return e.arg().accept(this, null, null); }
+	public Object visit(NullExp e, Env env, Heap h) { return e.arg().accept(this, null, null); }
+	public Object visit(IsNullExp e, Env env, Heap h) { return e.exp().accept(this, null, null); }
+	public Object visit(IsProcedureExp e, Env env, Heap h) { return e.exp().accept(this, null, null); }
+	public Object visit(IsListExp e, Env env, Heap h) { return e.exp().accept(this, null, null); }
+	public Object visit(IsPairExp e, Env env, Heap h) { return e.exp().accept(this, null, null); }
+	public Object visit(IsUnitExp e, Env env, Heap h) { return e.exp().accept(this, null, null); }
+	public Object visit(IsNumberExp e, Env env, Heap h) { return e.exp().accept(this, null, null); }
+	public Object visit(IsStringExp e, Env env, Heap h) { return e.exp().accept(this, null, null); }
+	public Object visit(IsBooleanExp e, Env env, Heap h) { return e.exp().accept(this, null, null); }
+	public Object visit(ReadExp e, Env env, Heap h) { return e.file().accept(this, null, null); }
+	public Object visit(EvalExp e, Env env, Heap h) { return e.code().accept(this, null, null); }
+	public Object visit(RequireExp e, Env env, Heap h) { return e.file().accept(this, null, null); }
+	public Object visit(RefExp e, Env env, Heap h) { return e.value_exp().accept(this, null, null); }
+	public Object visit(DerefExp e, Env env, Heap h) { return e.loc_exp().accept(this, null, null); }
+	public Object visit(FreeExp e, Env env, Heap h) { return e.value_exp().accept(this, null, null); }
+	public Object visit(LockExp e, Env env, Heap h) { return e.value_exp().accept(this, null, null); }
+	public Object visit(UnlockExp e, Env env, Heap h) { return e.value_exp().accept(this, null, null); }
+
+	public Object visit(UnitExp e, Env env, Heap h) { return null; }
+	public Object visit(NumExp e, Env env, Heap h) { return null; }
+	public Object visit(StrExp e, Env env, Heap h) { return null; }
+	public Object visit(BoolExp e, Env env, Heap h) { return null; }
+	public Object visit(ErrorExp e, Env env, Heap h) { return null; }
+	public Object visit(SelfExp e, Env env, Heap h) { return null; }
+	public Object visit(StopExp e, Env env, Heap h) { return null; }
+}
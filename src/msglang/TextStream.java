@@ -0,0 +1,115 @@
+package msglang;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+
+import org.antlr.v4.runtime.CharStream;
+import org.antlr.v4.runtime.IntStream;
+import org.antlr.v4.runtime.misc.Interval;
+
+/**
+ * Feeds the lexer from a buffer without first copying the text into a char
+ * array, as ANTLRInputStream does.
+ *
+ * A file is mapped into memory, or read into one buffer if it is small. If
+ * it is all ASCII, its bytes are its characters and the lexer reads them
+ * in place; otherwise it is decoded as UTF-8 once. A string is wrapped as
+ * it is.
+ *
+ * @author hridesh
+ *
+ */
+public class TextStream implements CharStream {
+	/* Files smaller than this are read rather than mapped. */
+	static final int MAP_THRESHOLD = 64 * 1024;
+
+	private final ByteBuffer _bytes; // The text, if it is ASCII; or
+	private final CharBuffer _chars; // the text.
+	private final int _size;
+	private final String _name;
+	private int _p = 0;
+
+	private TextStream(ByteBuffer bytes, CharBuffer chars, String name) {
+		_bytes = bytes;
+		_chars = chars;
+		_size = bytes != null ? bytes.limit() : chars.limit();
+		_name = name;
+	}
+
+	public TextStream(String text) {
+		this(null, CharBuffer.wrap(text), UNKNOWN_SOURCE_NAME);
+	}
+
+	public static TextStream open(String fileName) throws IOException {
+		try (RandomAccessFile file = new RandomAccessFile(fileName, "r");
+				FileChannel channel = file.getChannel()) {
+			long length = channel.size();
+			if(length > Integer.MAX_VALUE)
+				throw new IOException(fileName + " is too large to read");
+			ByteBuffer bytes;
+			if(length < MAP_THRESHOLD) {
+				bytes = ByteBuffer.allocate((int) length);
+				while(bytes.hasRemaining() && channel.read(bytes) >= 0);
+				bytes.flip();
+			} else
+				bytes = channel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+			for(int i = 0; i < bytes.limit(); i++)
+				if(bytes.get(i) < 0) // Not ASCII.
+					return new TextStream(null, StandardCharsets.UTF_8.decode(bytes), fileName);
+			return new TextStream(bytes, null, fileName);
+		}
+	}
+
+	private int at(int i) {
+		return _bytes != null ? _bytes.get(i) : _chars.get(i);
+	}
+
+	public void consume() {
+		if(_p >= _size)
+			throw new IllegalStateException("cannot consume EOF");
+		_p++;
+	}
+
+	public int LA(int i) {
+		if(i == 0)
+			return 0; // Undefined.
+		if(i < 0)
+			i++; // LA(-1) is the character before _p.
+		int index = _p + i - 1;
+		if(index < 0 || index >= _size)
+			return IntStream.EOF;
+		return at(index);
+	}
+
+	public int mark() { return -1; } // The whole text is in the buffer.
+
+	public void release(int marker) { }
+
+	public int index() { return _p; }
+
+	public void seek(int index) {
+		_p = Math.min(index, _size);
+	}
+
+	public int size() { return _size; }
+
+	public String getSourceName() { return _name; }
+
+	public String getText(Interval interval) {
+		int start = interval.a;
+		int stop = Math.min(interval.b, _size - 1);
+		if(start >= _size || stop < start)
+			return "";
+		if(_chars != null)
+			return _chars.subSequence(start, stop + 1).toString();
+		byte[] text = new byte[stop - start + 1];
+		ByteBuffer bytes = _bytes.duplicate();
+		bytes.position(start);
+		bytes.get(text);
+		return new String(text, StandardCharsets.US_ASCII);
+	}
+}
@@ -1,67 +1,257 @@
 package msglang;
 
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
 import java.util.concurrent.locks.ReentrantLock;
 
 import msglang.AST.*;
-import msglang.Env.ExtendEnv;
+import msglang.Env.FrameEnv;
 
 
 public interface Value {
 	public String tostring();
-	static class ActorVal extends Thread implements Value { //New in the Actorlang
+	/**
+	 * An actor: a mailbox plus a handler, run by its Evaluator's ActorRuntime
+	 * one message per turn while the mailbox is not empty. The handler is
+	 * the clause of the process that the message selects; a message that no
+	 * clause matches is dropped. Once stopped, it
+	 * rejects new messages and drops the ones still in its mailbox, and holds
+	 * no thread.
+	 */
+	static class ActorVal implements Value, Runnable { //New in the Actorlang
 		private Env _env;
-		private List<String> _formals;
-		private Exp _body;
+		private ProcExp _proc;
+		private final Dispatch _dispatch;
 		private Evaluator _evaluator;
 		private Heap _h;
-		private java.util.concurrent.LinkedBlockingDeque<List<Value>> _queue;
-		public ActorVal(Env env, List<String> formals, Exp body, Evaluator evaluator, Heap h) {
+		private final Mailbox _queue;
+		/* Set while a turn of this actor is pending or running. */
+		private final AtomicBoolean _scheduled = new AtomicBoolean();
+		/* The thread running a turn of this actor, if any. */
+		private volatile Thread _turn = null;
+		/* The deepest the mailbox has been at the start of a turn; only turns,
+		 * which never overlap, touch it. */
+		private int _peak = 0;
+		private final ActorRuntime _runtime;
+		public ActorVal(Env env, ProcExp proc, Evaluator evaluator, Heap h) {
 			_env = env;
-			_formals = formals;
-			_body = body;
+			_proc = proc;
+			_dispatch = proc.dispatch();
 			_evaluator = evaluator;
 			_h = h;
-			_queue = new java.util.concurrent.LinkedBlockingDeque<List<Value>>();
-			this.start();
+			_queue = evaluator.mailboxes().make();
+			_runtime = evaluator.runtime();
+			_runtime.stats().created();
 		}
+		/* One turn: processes up to a batch of the oldest messages, then
+		 * reschedules the actor if more are left. The turn is a frame of the
+		 * heap, and each message a jump in it. */
 		public void run(){
-			while(!_exit()) {
-				try {
-					List<Value> actuals = _queue.take();
-					Env receive_env = _env;
-					for (int index = 0; index < _formals.size(); index++)
-						receive_env = new ExtendEnv(receive_env, _formals.get(index), actuals.get(index));
-					receive_env = new ExtendEnv(receive_env, "self", this);
-					_body.accept(_evaluator, receive_env, _h);
-				} catch (InterruptedException e) {
-					e.printStackTrace();
+			boolean entered = false;
+			try {
+				if(_exit()) {
+					drop();
+					return;
+				}
+				_h.enter(_env);
+				entered = true;
+				_turn = Thread.currentThread();
+				int depth = _queue.depth();
+				if(depth > _peak) // Sampled here rather than on every send.
+					_runtime.stats().depth(_peak = depth);
+				int batch = _evaluator.batch();
+				List<Value> actuals;
+				while(batch-- > 0 && !_exit && (actuals = _queue.poll()) != null) {
+					int index = _dispatch.select(actuals);
+					if(index < 0) {
+						Request.fail(actuals, "No clause matches the message");
+						_runtime.stats().dropped(1);
+						continue;
+					}
+					Clause clause = _proc.clauses().get(index);
+					List<String> names = clause.receive_names();
+					Value[] slots = new Value[names.size()];
+					int skip = clause.tag() == null ? 0 : 1;
+					for(int i = skip; i < actuals.size(); i++)
+						slots[i - skip] = actuals.get(i);
+					slots[slots.length - 1] = this;
+					Env receive_env = new FrameEnv(_env, names, slots);
+					_h.jump(receive_env);
+					try {
+						Value result = process(index, receive_env);
+						if(actuals instanceof Request)
+							((Request) actuals).reply(result);
+					} catch (RuntimeException e) {
+						Request.fail(actuals, "Actor failed before replying: " + e);
+						e.printStackTrace();
+					}
 				}
+			} finally {
+				_turn = null;
+				_h.unroot(this);
+				_scheduled.set(false);
+				if(!_queue.isEmpty())
+					schedule();
+				if(entered)
+					_h.leave(null);
 			}
 		}
-		public boolean receive (List<Value> request) throws InterruptedException {
-			if(!_exit()) {
-				_queue.put(request);
-				return true;
+		/* A scheduled actor is a root of its heap until its turn ends. */
+		private void schedule() {
+			if(_scheduled.compareAndSet(false, true)) {
+				_h.root(this);
+				_runtime.execute(this);
 			}
-			return false;
 		}
-		public List<String> formals() { return _formals; }
+		/* Empties the mailbox of a stopped actor. Runs as a turn, so that it
+		 * also catches messages sent while the actor was stopping. */
+		private void drop() {
+			int dropped = 0;
+			List<Value> message;
+			while((message = _queue.poll()) != null) {
+				Request.fail(message, "Actor stopped before replying");
+				dropped++;
+			}
+			_runtime.stats().dropped(dropped);
+		}
+		/* Evaluates the body of a clause for one message; engines may override
+		 * this. */
+		protected Value process(int clause, Env receive_env) {
+			return (Value) _proc.clauses().get(clause).body().accept(_evaluator, receive_env, _h);
+		}
+		/* Returns false if the actor has stopped or its mailbox is full. */
+		public boolean receive (List<Value> request) {
+			if(_exit())
+				return false;
+			boolean delivered;
+			if(!(_queue instanceof Mailbox.Bounded))
+				delivered = _queue.offer(request);
+			else if(_turn == Thread.currentThread())
+				delivered = ((Mailbox.Bounded) _queue).tryOffer(request);
+			else {
+				_h.block(); // The sender may wait for room.
+				try {
+					delivered = _queue.offer(request);
+				} finally {
+					_h.unblock();
+				}
+			}
+			if(!delivered) {
+				_runtime.stats().refused();
+				return false;
+			}
+			schedule();
+			return true;
+		}
+		/* The number of messages waiting for this actor. */
+		public int depth() { return _queue.depth(); }
+		public Mailbox mailbox() { return _queue; }
+		Env env() { return _env; }
+		public boolean stopped() { return _exit(); }
+		/* Whether some clause takes messages with this many values. */
+		public boolean accepts(int arity) { return _dispatch.accepts(arity); }
+		public ProcExp proc() { return _proc; }
+		public Heap heap() { return _h; }
+		public Evaluator evaluator() { return _evaluator; }
 		volatile boolean _exit = false;
 		private synchronized boolean _exit() { return _exit; } 
-		public synchronized void exit() { _exit = true; }
+		public synchronized void exit() {
+			if(_exit)
+				return;
+			_exit = true;
+			_runtime.stats().stopped();
+			if(!_queue.isEmpty())
+				schedule();
+		}
         public String tostring() {
             return "actor: " + this;
         }
+		/**
+		 * A message sent by ask: the arguments, and the future that the
+		 * value of the handler for them completes.
+		 */
+		static class Request extends ArrayList<Value> {
+			private static final long serialVersionUID = 1L;
+			private final FutureVal _reply;
+			public Request(List<Value> actuals, FutureVal reply) {
+				super(actuals);
+				_reply = reply;
+			}
+			public void reply(Value result) { _reply.complete(result); }
+			/* Completes the future of message with an error, if it is a
+			 * request; for messages that will never be processed. */
+			static void fail(List<Value> message, String reason) {
+				if(message instanceof Request)
+					((Request) message).reply(new DynamicError(reason));
+			}
+		}
 	}
-	static class RefVal extends ReentrantLock implements Value { //New in the reflang
-		private static final long serialVersionUID = 1L;
+	/**
+	 * The pending reply to an ask. Nothing waits for it until it is awaited:
+	 * a request in a mailbox holds no thread, and an await parks only the
+	 * thread that awaits.
+	 */
+	static class FutureVal implements Value {
+		private final CompletableFuture<Value> _value = new CompletableFuture<Value>();
+		/* The first completion wins; the rest are ignored. */
+		void complete(Value value) { _value.complete(value); }
+		public boolean isDone() { return _value.isDone(); }
+		/* The value, or null if the future is not done yet. */
+		Value now() { return _value.getNow(null); }
+		/* Waits at most millis milliseconds, or as long as it takes if millis
+		 * is negative, and returns null on timeout. A worker of a fork/join
+		 * pool that waits is replaced by a spare worker meanwhile. */
+		public Value await(long millis) {
+			try {
+				return millis < 0 ? _value.get() : _value.get(millis, TimeUnit.MILLISECONDS);
+			} catch (TimeoutException e) {
+				return null;
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return new DynamicError("Interrupted while awaiting a reply");
+			} catch (ExecutionException e) {
+				return new DynamicError("" + e.getCause());
+			}
+		}
+		public String tostring() {
+			return _value.isDone() ? "future: " + _value.join().tostring() : "future";
+		}
+	}
+	static class RefVal implements Value { //New in the reflang
+		private static final AtomicReferenceFieldUpdater<RefVal, ReentrantLock> LOCK =
+				AtomicReferenceFieldUpdater.newUpdater(RefVal.class, ReentrantLock.class, "_lock");
 		private int _loc = -1; 
+		private int _gen = 0; // Which allocation of the cell at _loc this refers to.
         public RefVal(int loc) { _loc = loc; }
+        public RefVal(int loc, int gen) { _loc = loc; _gen = gen; }
         public String tostring() {
             return "loc:" + this._loc;
         }
         public int loc() { return _loc; }
+        public int gen() { return _gen; }
+        /* Inflated by the first lock, since most refs are never locked. */
+        private volatile ReentrantLock _lock = null;
+        public void lock() {
+        	ReentrantLock lock = _lock;
+        	if(lock == null) {
+        		LOCK.compareAndSet(this, null, new ReentrantLock());
+        		lock = _lock;
+        	}
+        	lock.lock();
+        }
+        /* Throws IllegalMonitorStateException unless the caller holds the lock. */
+        public void unlock() {
+        	ReentrantLock lock = _lock;
+        	if(lock == null)
+        		throw new IllegalMonitorStateException();
+        	lock.unlock();
+        }
     }
 	static class FunVal implements Value { //New in the funclang
 		private Env _env;
@@ -85,7 +275,21 @@ public interface Value {
 	    }
 	}
 	static class NumVal implements Value {
-	    private double _val;
+		/* Canonical instances for the small integers that loops count with. */
+		private static final int CACHE_LOW = -128, CACHE_HIGH = 1024;
+		private static final NumVal[] cache = new NumVal[CACHE_HIGH - CACHE_LOW];
+		static {
+			for(int i = 0; i < cache.length; i++)
+				cache[i] = new NumVal(i + CACHE_LOW);
+		}
+		/* Returns a cached instance if v is a small integer (but not -0.0). */
+		public static NumVal of(double v) {
+			int i = (int) v;
+			if(i == v && i >= CACHE_LOW && i < CACHE_HIGH && (i != 0 || Double.doubleToRawLongBits(v) == 0L))
+				return cache[i - CACHE_LOW];
+			return new NumVal(v);
+		}
+	    private final double _val;
 	    public NumVal(double v) { _val = v; } 
 	    public double v() { return _val; }
 	    public String tostring() { 
@@ -95,7 +299,9 @@ public interface Value {
 	    }
 	}
 	static class BoolVal implements Value {
-		private boolean _val;
+		public static final BoolVal TRUE = new BoolVal(true), FALSE = new BoolVal(false);
+		public static BoolVal of(boolean v) { return v ? TRUE : FALSE; }
+		private final boolean _val;
 	    public BoolVal(boolean v) { _val = v; } 
 	    public boolean v() { return _val; }
 	    public String tostring() { if(_val) return "#t"; return "#f"; }
@@ -134,6 +340,7 @@ public interface Value {
 	    }
 	}
 	static class Null implements Value {
+		public static final Null v = new Null();
 		public Null() {}
 	    public String tostring() { return "()"; }
 	}
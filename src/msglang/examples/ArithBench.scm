@@ -0,0 +1,15 @@
+/* Benchmark: a numeric loop of 1,000,000 iterations, each doing nine
+   arithmetic operations and one comparison on small integers. Time the
+   result and, with a profiler or -Xlog:gc, the bytes allocated; nested
+   arithmetic should box only its final result, and small integers and
+   booleans should come from the cached NumVal and BoolVal instances. */
+
+(define sum
+	(lambda (i acc)
+		(if (= i 0) acc
+			(sum (- i 1) (- (+ acc (* (- i 1) 2) (/ (* i 3) 3)) (* (+ i 1) 1) (- i 1)))
+		)
+	)
+)
+
+(sum 1000000 0)
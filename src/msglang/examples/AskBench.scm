@@ -0,0 +1,66 @@
+/* Benchmark: request/reply with ask and await. (scatter n) makes n
+   requests to a squaring actor before it awaits any of them, so that n
+   replies are pending at once; (rpc n) makes them one at a time; and
+   (replies n) does what scatter does without ask, by passing each request
+   a reply actor. Time each with n = 100,000, and watch the thread count:
+   pending requests hold no thread. The results are the sum of the
+   squares of 1..n. */
+
+(define squarer (process (x) (* x x)))
+
+(define scatter
+	(lambda (n)
+		(letrec ((asks (lambda (i futures)
+					(if (= i 0) futures
+						(asks (- i 1) (cons (ask squarer i) futures))
+					)
+				))
+				(sum (lambda (futures acc)
+					(if (null? futures) acc
+						(sum (cdr futures) (+ acc (await (car futures))))
+					)
+				)))
+			(sum (asks n (list)) 0)
+		)
+	)
+)
+
+(define rpc
+	(lambda (n)
+		(letrec ((loop (lambda (i acc)
+					(if (= i 0) acc
+						(loop (- i 1) (+ acc (await (ask squarer i))))
+					)
+				)))
+			(loop n 0)
+		)
+	)
+)
+
+(define server (process (x reply) (send reply (* x x))))
+
+(define replies
+	(lambda (n)
+		(let ((total (ref 0)) (received (ref 0)))
+			(letrec ((collector (process (y)
+						(let ((s (set! total (+ (deref total) y))))
+							(set! received (+ (deref received) 1))
+						)
+					))
+					(requests (lambda (i)
+						(if (= i 0) 0
+							(let ((s (send server i collector))) (requests (- i 1)))
+						)
+					))
+					(wait (lambda ()
+						(if (< (deref received) n) (wait) (deref total))
+					)))
+				(let ((s (requests n)))
+					(wait)
+				)
+			)
+		)
+	)
+)
+
+(scatter 100000)
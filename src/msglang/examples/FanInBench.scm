@@ -0,0 +1,41 @@
+/* Benchmark: 100 actors each send 10,000 messages to one sink actor, so
+   that many senders contend for one mailbox. Time the result with the
+   -mailbox=concurrent, -mailbox=deque and -mailbox=array:N options of the
+   interpreter and without them (the default lock-free MPSC mailbox), and
+   with a -workers=N larger than the number of cores. The result is the
+   number of messages the sink received, 1,000,000. */
+
+(define fanin
+	(lambda (senders messages)
+		(let ((count (ref 0)))
+			(letrec ((sink (process (n)
+						(set! count (+ (deref count) n))
+					))
+					(sender (lambda ()
+						(process (k)
+							(letrec ((loop (lambda (i)
+										(if (= i 0) 0
+											(let ((s (send sink 1))) (loop (- i 1)))
+										)
+									)))
+								(loop k)
+							)
+						)
+					))
+					(start (lambda (j)
+						(if (= j 0) 0
+							(let ((s (send (sender) messages))) (start (- j 1)))
+						)
+					))
+					(wait (lambda ()
+						(if (< (deref count) (* senders messages)) (wait) (deref count))
+					)))
+				(let ((s (start senders)))
+					(wait)
+				)
+			)
+		)
+	)
+)
+
+(fanin 100 10000)
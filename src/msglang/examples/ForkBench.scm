@@ -0,0 +1,16 @@
+/* Benchmark: a fork tree of depth 12, i.e. 4,095 forks and 4,096 leaves,
+   each leaf summing a short list. Time the result, and the peak memory
+   of the process, with no option, and with the -forkjoin or -virtual
+   option of the interpreter. */
+
+(define tree
+	(lambda (depth)
+		(if (= depth 0) (+ 1 2 3 4 5 6 7 8)
+			(let ((branches (fork (tree (- depth 1)) (tree (- depth 1)))))
+				(+ (car branches) (cdr branches))
+			)
+		)
+	)
+)
+
+(tree 12)
@@ -0,0 +1,8 @@
+/* Regression: a module whose top-level fork requires the module itself.
+   Run (require "build/msglang/examples/ForkRequireTest.scm") at the
+   interpreter prompt, with and without -forkjoin. The second branch
+   runs on another thread while this one loads the module and waits for
+   the branch, so its require could never finish. The result should be a
+   pair of 1 and a "Cyclic require" error, at once. */
+
+(fork 1 (require "build/msglang/examples/ForkRequireTest.scm"))
@@ -0,0 +1,10 @@
+/* Regression: the branches of a fork run concurrently, so a branch may
+   wait for the other. Run it on a machine with one CPU as well. The
+   first branch of the inner fork spins until the second sets r. The
+   result should be (0 (1 1)). With -forkjoin, a fork may evaluate its
+   branches one after the other, and this program never finishes. */
+
+(fork 0
+	(let ((r (ref 0)))
+		(letrec ((spin (lambda () (if (= (deref r) 0) (spin) 1))))
+			(fork (spin) (set! r 1)))))
@@ -0,0 +1,27 @@
+/* Regression: allocating from the concurrent heap once the cells that were
+   freed have all been reused. Run the interpreter with -concurrent. The
+   program takes all 1,048,576 cells of the heap, frees ten of them, takes
+   those ten back, and asks for one more. The result should be
+   "Out of memory error". */
+
+(define fill
+	(lambda (n refs)
+		(if (= n 0) refs
+			(fill (- n 1) (cons (ref n) refs))
+		)
+	)
+)
+
+(define release
+	(lambda (n refs)
+		(if (= n 0) refs
+			(let ((f (free (car refs)))) (release (- n 1) (cdr refs)))
+		)
+	)
+)
+
+(let ((refs (fill 1048576 (list))))
+	(let ((kept (fill 10 (release 10 refs))))
+		(ref 0)
+	)
+)
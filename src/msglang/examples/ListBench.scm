@@ -0,0 +1,31 @@
+/* Benchmark: length and map from lib/std.scm over a list of n elements.
+   Run the interpreter with the -time option, enter run ListBench.scm
+   (which warms up with n = 100,000), then enter (bench 100000),
+   (bench 200000) and (bench 400000), each twice, and take the time of
+   the second run of each. The results are 2n: 200000, 400000 and 800000.
+   With call frames holding only the formals the times should double as n
+   doubles, e.g. 35, 90 and 190 ms, where quadratic growth would show as
+   35, 140 and 560 ms. Every loop here and in length and map is a tail
+   call, so the default stack is enough. */
+
+(define std (require "build/msglang/lib/std.scm"))
+
+(define range
+	(lambda (n)
+		(letrec ((loop (lambda (n acc) (if (= n 0) acc (loop (- n 1) (cons n acc))))))
+			(loop n (list))
+		)
+	)
+)
+
+(define double (lambda (x) (* x 2)))
+
+(define bench
+	(lambda (n)
+		(let ((lst (range n)))
+			(+ (length lst) (length (map double lst)))
+		)
+	)
+)
+
+(bench 100000)
@@ -0,0 +1,35 @@
+/* Benchmark: the PingPong example scaled up. Two actors rally 1,000 balls
+   back and forth 1,000 times each, so 1,001,000 messages are sent and
+   each mailbox holds up to a thousand at once. Time the result with
+   different -batch=N options of the interpreter. The result is the number
+   of hits, 1,000,000. */
+
+(define rally
+	(lambda (balls hits)
+		(let ((a (ref 0)) (b (ref 0)))
+			(letrec ((player (lambda (finished)
+						(process (other n)
+							(if (> n 0) (send other (self) (- n 1))
+								(set! finished (+ (deref finished) 1))
+							)
+						)
+					))
+					(serve (lambda (ping pong k)
+						(if (= k 0) 0
+							(let ((s (send ping pong hits))) (serve ping pong (- k 1)))
+						)
+					))
+					(wait (lambda ()
+						(if (< (+ (deref a) (deref b)) balls) (wait) (* balls hits))
+					)))
+				(let ((ping (player a)) (pong (player b)))
+					(let ((s (serve ping pong balls)))
+						(wait)
+					)
+				)
+			)
+		)
+	)
+)
+
+(rally 1000 1000)
@@ -0,0 +1,60 @@
+/* Benchmark: dispatching on the kind of message. A counter actor takes
+   eight kinds of messages, tagged 1 to 8, and is sent 200,000 messages of
+   the last kind. (tagged n) writes the counter with receive clauses, which
+   pick the clause with one table lookup; (chained n) writes it as one
+   handler that tests the tag with a chain of ifs. Time both, with each
+   engine. The results are the final count, 200,000. */
+
+(define run
+	(lambda (counter count n)
+		(letrec ((sends (lambda (i)
+					(if (= i 0) 0
+						(let ((s (send counter 8 1))) (sends (- i 1)))
+					)
+				))
+				(wait (lambda ()
+					(if (< (deref count) n) (wait) (deref count))
+				)))
+			(let ((s (sends n)))
+				(wait)
+			)
+		)
+	)
+)
+
+(define tagged
+	(lambda (n)
+		(let ((count (ref 0)))
+			(run (process (receive
+					((1 k) (set! count (- (deref count) k)))
+					((2 k) (set! count (* (deref count) k)))
+					((3 k) (set! count (/ (deref count) k)))
+					((4 k) (set! count k))
+					((5 k) (set! count (+ (deref count) (* 2 k))))
+					((6 k) (set! count (- (deref count) (* 2 k))))
+					((7 k) (set! count 0))
+					((8 k) (set! count (+ (deref count) k)))))
+				count n)
+		)
+	)
+)
+
+(define chained
+	(lambda (n)
+		(let ((count (ref 0)))
+			(run (process (tag k)
+					(if (= tag 1) (set! count (- (deref count) k))
+					(if (= tag 2) (set! count (* (deref count) k))
+					(if (= tag 3) (set! count (/ (deref count) k))
+					(if (= tag 4) (set! count k)
+					(if (= tag 5) (set! count (+ (deref count) (* 2 k)))
+					(if (= tag 6) (set! count (- (deref count) (* 2 k)))
+					(if (= tag 7) (set! count 0)
+					(if (= tag 8) (set! count (+ (deref count) k))
+						0)))))))))
+				count n)
+		)
+	)
+)
+
+(tagged 200000)
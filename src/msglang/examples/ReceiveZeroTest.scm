@@ -0,0 +1,17 @@
+/* Regression: receive clauses pick a tag by numeric equality, as = does,
+   so a message of negative zero matches the clause tagged 0. Run it with
+   each engine. The result should be (zero zero one other). */
+
+(define classify
+	(process (receive
+		((0 x) "zero")
+		((1 x) "one")
+		((n x) "other")))
+)
+
+(define negzero (* (- 0 1) 0))
+
+(list (await (ask classify negzero 0))
+	(await (ask classify 0 0))
+	(await (ask classify 1 0))
+	(await (ask classify 2 0)))
@@ -0,0 +1,37 @@
+/* Benchmark: a ring of 100,000 actors passes a token around ten times.
+   Time the result, and the peak memory of the process, with and without
+   the -virtual option of the interpreter. The result is the number of
+   hops, 1,000,000. */
+
+(define ring
+	(lambda (size laps)
+		(let ((done (ref 0)))
+			(letrec ((link (lambda (n next)
+						(if (= n 0) next
+							(link (- n 1) (process (hops) (send next (+ hops 1))))
+						)
+					))
+					(wait (lambda ()
+						(if (= (deref done) 0) (wait) (deref done))
+					)))
+				(let ((last (ref 0)))
+					(let ((head (link (- size 1)
+								(process (hops)
+									(if (< hops (* size laps))
+										(send (deref last) (+ hops 1))
+										(set! done hops)
+									)
+								))))
+						(let ((u (set! last head)))
+							(let ((v (send head 1)))
+								(wait)
+							)
+						)
+					)
+				)
+			)
+		)
+	)
+)
+
+(ring 100000 10)
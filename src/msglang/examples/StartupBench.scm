@@ -0,0 +1,92 @@
+/* Benchmark: how long a short-lived job takes to load its program. This
+   file is a small library followed by one quick call to it. Compile it and
+   then load each form in a fresh JVM:
+     java msglang.Msgc build/msglang/examples/StartupBench.scm
+     java msglang.Msgc -time build/msglang/examples/StartupBench.scm
+     java msglang.Msgc -time build/msglang/examples/StartupBench.msgc
+   The first -time goes through the ANTLR lexer and parser, the second
+   reads the binary AST. */
+
+(define foldl
+	(lambda (f acc lst)
+		(if (null? lst) acc
+			(foldl f (f acc (car lst)) (cdr lst))
+		)
+	)
+)
+
+(define foldr
+	(lambda (f init lst)
+		(if (null? lst) init
+			(f (car lst) (foldr f init (cdr lst)))
+		)
+	)
+)
+
+(define filter
+	(lambda (keep lst)
+		(foldr (lambda (x rest) (if (keep x) (cons x rest) rest)) (list) lst)
+	)
+)
+
+(define range
+	(lambda (from to)
+		(letrec ((loop (lambda (i acc)
+					(if (< i from) acc
+						(loop (- i 1) (cons i acc))
+					)
+				)))
+			(loop (- to 1) (list))
+		)
+	)
+)
+
+(define sum
+	(lambda (lst)
+		(foldl (lambda (acc x) (+ acc x)) 0 lst)
+	)
+)
+
+(define insert
+	(lambda (x sorted)
+		(if (null? sorted) (list x)
+			(if (< x (car sorted)) (cons x sorted)
+				(cons (car sorted) (insert x (cdr sorted)))
+			)
+		)
+	)
+)
+
+(define sort
+	(lambda (lst)
+		(foldl (lambda (acc x) (insert x acc)) (list) lst)
+	)
+)
+
+(define assoc
+	(lambda (key alist)
+		(if (null? alist) #f
+			(if (= key (car (car alist))) (car alist)
+				(assoc key (cdr alist))
+			)
+		)
+	)
+)
+
+(define counter
+	(lambda ()
+		(let ((n (ref 0)))
+			(lambda () (set! n (+ (deref n) 1)))
+		)
+	)
+)
+
+(define worker
+	(process (reply)
+		(let ((squares (foldr (lambda (x rest) (cons (* x x) rest)) (list) (range 0 10))))
+			(send reply (sum squares))
+		)
+	)
+)
+
+(sum (sort (filter (lambda (x) (> x 2)) (list 5 3 9 1 7))))
@@ -22,26 +22,60 @@
 
 (define length
 	(lambda (lst)
-		(if (null? lst) 0
-			(+ 1 (length (cdr lst)))
-		)		
+		(letrec ((loop (lambda (lst n)
+					(if (null? lst) n
+						(loop (cdr lst) (+ n 1))
+					)
+				)))
+			(loop lst 0)
+		)
 	)
 )
 
+(define reverse
+	(lambda (lst)
+		(letrec ((loop (lambda (lst acc)
+					(if (null? lst) acc
+						(loop (cdr lst) (cons (car lst) acc))
+					)
+				)))
+			(loop lst (list))
+		)
+	)
+)
+
+/* The procedures below build their result in reverse with tail calls,
+   so that they run in constant stack even on very long lists. Each binds
+   its own reversal loop, so that they still work if a program defines
+   reverse. */
+
 (define append
 	(lambda (lst1 lst2)
-		(if (null? lst1) lst2
-			(if (null? lst2) lst1
-				(cons (car lst1) (append (cdr lst1) lst2))
+		(if (null? lst2) lst1
+			(letrec ((onto (lambda (rev1 acc)
+						(if (null? rev1) acc
+							(onto (cdr rev1) (cons (car rev1) acc))
+						)
+					)))
+				(onto (onto lst1 (list)) lst2)
 			)
-		)		
+		)
 	)
 )
 
 (define map
 	(lambda (op lst)
-		(if (null? lst) (list)
-			(cons (op (car lst)) (map op (cdr lst)))
-		)		
+		(letrec ((onto (lambda (rev acc)
+					(if (null? rev) acc
+						(onto (cdr rev) (cons (car rev) acc))
+					)
+				))
+				(loop (lambda (lst acc)
+					(if (null? lst) (onto acc (list))
+						(loop (cdr lst) (cons (op (car lst)) acc))
+					)
+				)))
+			(loop lst (list))
+		)
 	)
 )
\ No newline at end of file
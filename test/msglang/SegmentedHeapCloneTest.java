@@ -0,0 +1,67 @@
+package msglang;
+
+/**
+ * Regression: a clone of a SegmentedHeap is a snapshot. Run it with the
+ * classes of src on the class path; it prints "ok", or what went wrong and
+ * exits with 1.
+ *
+ * It first checks that writes after a clone change only the heap that
+ * makes them, then clones a heap over and over while other threads write
+ * it, and checks that no write reaches a clone after the clone was taken.
+ *
+ * @author hridesh
+ *
+ */
+public class SegmentedHeapCloneTest {
+	static final int WRITERS = 4, CLONES = 500;
+	static volatile boolean done = false;
+
+	public static void main(String[] args) throws InterruptedException {
+		Heap.SegmentedHeap heap = new Heap.SegmentedHeap();
+		Value.RefVal loc = (Value.RefVal) heap.ref(new Value.NumVal(1));
+		Heap copy = heap.clone();
+		heap.setref(loc, new Value.NumVal(2));
+		check(copy.deref(loc), 1, "a write to the heap reached its clone");
+		copy.setref(loc, new Value.NumVal(3));
+		check(heap.deref(loc), 2, "a write to a clone reached its heap");
+
+		final Heap.SegmentedHeap shared = new Heap.SegmentedHeap();
+		final Value.RefVal[] cells = new Value.RefVal[WRITERS];
+		for(int w = 0; w < WRITERS; w++)
+			cells[w] = (Value.RefVal) shared.ref(new Value.NumVal(0));
+		Thread[] writers = new Thread[WRITERS];
+		for(int w = 0; w < WRITERS; w++) {
+			final Value.RefVal cell = cells[w];
+			writers[w] = new Thread(new Runnable() {
+				public void run() {
+					for(int n = 1; !done; n++)
+						shared.setref(cell, new Value.NumVal(n));
+				}
+			});
+			writers[w].start();
+		}
+		try {
+			for(int c = 0; c < CLONES; c++) {
+				Heap snapshot = shared.clone();
+				double[] taken = new double[WRITERS];
+				for(int w = 0; w < WRITERS; w++)
+					taken[w] = ((Value.NumVal) snapshot.deref(cells[w])).v();
+				Thread.yield();
+				for(int w = 0; w < WRITERS; w++)
+					check(snapshot.deref(cells[w]), taken[w], "a write reached a clone after it was taken");
+			}
+		} finally {
+			done = true;
+			for(Thread writer : writers)
+				writer.join();
+		}
+		System.out.println("ok");
+	}
+
+	private static void check(Value value, double expected, String failure) {
+		if(((Value.NumVal) value).v() != expected) {
+			System.out.println(failure + ": " + value.tostring() + " instead of " + expected);
+			System.exit(1);
+		}
+	}
+}